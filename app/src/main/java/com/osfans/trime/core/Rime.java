@@ -26,17 +26,19 @@ import com.osfans.trime.data.AppPrefs;
 import com.osfans.trime.data.DataManager;
 import com.osfans.trime.data.opencc.OpenCCDictManager;
 import com.osfans.trime.ime.core.Trime;
-import java.io.BufferedReader;
-import java.io.CharArrayWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import timber.log.Timber;
 
 /**
@@ -48,34 +50,73 @@ import timber.log.Timber;
 public class Rime {
   /** Rime編碼區 */
   public static class RimeComposition {
+    private final RimeContext context;
     int length;
     int cursor_pos;
     int sel_start;
     int sel_end;
-    String preedit;
-    byte[] bytes;
+    private final int preeditOffset;
+    private String preedit;
+
+    RimeComposition(RimeContext context, int preeditOffset) {
+      this.context = context;
+      this.preeditOffset = preeditOffset;
+    }
+
+    @Nullable
+    String getPreedit() {
+      if (preedit == null) preedit = context.getString(preeditOffset);
+      return preedit;
+    }
 
     public String getText() {
       if (length == 0) return "";
-      bytes = preedit.getBytes();
-      return preedit;
+      final String s = getPreedit();
+      return s == null ? "" : s;
     }
 
     public int getStart() {
       if (length == 0) return 0;
-      return new String(bytes, 0, sel_start).length();
+      return context.getCharCount(preeditOffset, sel_start);
     }
 
     public int getEnd() {
       if (length == 0) return 0;
-      return new String(bytes, 0, sel_end).length();
+      return context.getCharCount(preeditOffset, sel_end);
     }
   }
 
-  /** Rime候選項 */
+  /** Rime候選項，來自上下文快照時按需解碼文字和註釋 */
   public static class RimeCandidate {
-    public String text;
-    public String comment;
+    private final RimeContext context;
+    private final int textOffset;
+    private final int commentOffset;
+    private String text;
+    private String comment;
+
+    public RimeCandidate(String text, String comment) {
+      this.context = null;
+      this.textOffset = -1;
+      this.commentOffset = -1;
+      this.text = text;
+      this.comment = comment;
+    }
+
+    RimeCandidate(RimeContext context, int textOffset, int commentOffset) {
+      this.context = context;
+      this.textOffset = textOffset;
+      this.commentOffset = commentOffset;
+    }
+
+    public String getText() {
+      if (text == null && context != null) text = context.getString(textOffset);
+      return text;
+    }
+
+    public String getComment() {
+      if (comment == null && context != null) comment = context.getString(commentOffset);
+      return comment;
+    }
   }
 
   /** Rime候選區，包含多個{@link RimeCandidate 候選項} */
@@ -96,15 +137,137 @@ public class Rime {
     String text;
   }
 
-  /** Rime環境，包括 {@link RimeComposition 編碼區} 、{@link RimeMenu 候選區} */
+  /**
+   * Rime環境，包括 {@link RimeComposition 編碼區} 、{@link RimeMenu 候選區}
+   *
+   * <p>JNI 把上下文寫成緊湊的二進制快照，字段依次爲：data_size; composition 的 length,
+   * cursor_pos, sel_start, sel_end, preedit; menu 的 page_size, page_no, is_last_page,
+   * highlighted_candidate_index, num_candidates, 各候選項的 text 與 comment, select_keys;
+   * commit_text_preview; select_labels 的個數與內容。
+   *
+   * <p>整數爲本機字節序的 int32，字符串爲 int32 字節數（-1 表示 null）加 UTF-8 字節。
+   * 字符串在使用時才解碼。
+   */
   public static class RimeContext {
+    private final byte[] data;
+    private final ByteBuffer view;
     int data_size;
     // v0.9
     RimeComposition composition;
     RimeMenu menu;
     // v0.9.2
-    String commit_text_preview;
-    String[] select_labels;
+    private int commitTextPreviewOffset = -1;
+    private String commit_text_preview;
+    private int[] selectLabelOffsets;
+    private String[] select_labels;
+    private int[] candidateOffsets;
+    private int selectKeysOffset = -1;
+    private int menuOffset;
+    private int labelsOffset;
+
+    RimeContext() {
+      data = null;
+      view = null;
+    }
+
+    /** 從引擎線程的 JNI 緩衝區複製快照，解碼整數並記下各字符串的位置 */
+    RimeContext(@NonNull ByteBuffer buffer, int size) {
+      data = new byte[size];
+      buffer.position(0);
+      buffer.get(data, 0, size);
+      view = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+      int pos = 0;
+      data_size = view.getInt(pos);
+      pos += 4;
+
+      final int[] header = new int[4];
+      for (int i = 0; i < header.length; i++, pos += 4) header[i] = view.getInt(pos);
+      composition = new RimeComposition(this, pos);
+      composition.length = header[0];
+      composition.cursor_pos = header[1];
+      composition.sel_start = header[2];
+      composition.sel_end = header[3];
+      pos = skipString(pos);
+
+      menuOffset = pos;
+      menu = new RimeMenu();
+      menu.page_size = view.getInt(pos);
+      menu.page_no = view.getInt(pos + 4);
+      menu.is_last_page = view.getInt(pos + 8) != 0;
+      menu.highlighted_candidate_index = view.getInt(pos + 12);
+      menu.num_candidates = view.getInt(pos + 16);
+      pos += 20;
+      candidateOffsets = new int[menu.num_candidates * 2];
+      for (int i = 0; i < candidateOffsets.length; i++) {
+        candidateOffsets[i] = pos;
+        pos = skipString(pos);
+      }
+      selectKeysOffset = pos;
+      pos = skipString(pos);
+
+      commitTextPreviewOffset = pos;
+      pos = skipString(pos);
+
+      labelsOffset = pos;
+      final int labels = view.getInt(pos);
+      pos += 4;
+      if (labels >= 0) {
+        selectLabelOffsets = new int[labels];
+        for (int i = 0; i < labels; i++) {
+          selectLabelOffsets[i] = pos;
+          pos = skipString(pos);
+        }
+      }
+    }
+
+    /**
+     * 與上一個快照比較，找出變化的部分
+     *
+     * @return {@link #CHANGED_COMPOSITION} 與 {@link #CHANGED_MENU} 的組合
+     */
+    int diff(@NonNull RimeContext previous) {
+      if (previous.data == null) return CHANGED_COMPOSITION | CHANGED_MENU;
+      int changes = 0;
+      // 編碼區在第 0、2 段，候選區在第 1、3 段
+      if (!sameSection(previous, 0) || !sameSection(previous, 2)) changes |= CHANGED_COMPOSITION;
+      if (!sameSection(previous, 1) || !sameSection(previous, 3)) changes |= CHANGED_MENU;
+      return changes;
+    }
+
+    private int[] sections() {
+      return new int[] {4, menuOffset, commitTextPreviewOffset, labelsOffset, data.length};
+    }
+
+    private boolean sameSection(RimeContext other, int index) {
+      final int[] mine = sections(), theirs = other.sections();
+      final int from = mine[index], to = mine[index + 1], otherFrom = theirs[index];
+      if (to - from != theirs[index + 1] - otherFrom) return false;
+      for (int i = from, j = otherFrom; i < to; i++, j++) {
+        if (data[i] != other.data[j]) return false;
+      }
+      return true;
+    }
+
+    private int skipString(int pos) {
+      final int length = view.getInt(pos);
+      return pos + 4 + Math.max(length, 0);
+    }
+
+    @Nullable
+    String getString(int pos) {
+      if (view == null || pos < 0) return null;
+      final int length = view.getInt(pos);
+      if (length < 0) return null;
+      return new String(data, pos + 4, length, StandardCharsets.UTF_8);
+    }
+
+    /** 字符串前 bytes 個 UTF-8 字節對應的 Java 字符數 */
+    int getCharCount(int pos, int bytes) {
+      if (view == null || pos < 0) return 0;
+      final int length = view.getInt(pos);
+      if (length <= 0) return 0;
+      return new String(data, pos + 4, Math.min(bytes, length), StandardCharsets.UTF_8).length();
+    }
 
     public int size() {
       if (menu == null) return 0;
@@ -113,7 +276,39 @@ public class Rime {
 
     public RimeCandidate[] getCandidates() {
       Timber.d("setWindow getCandidates() size()=" + size());
-      return size() == 0 ? null : menu.candidates;
+      if (size() == 0) return null;
+      if (menu.candidates == null) {
+        final RimeCandidate[] candidates = new RimeCandidate[size()];
+        for (int i = 0; i < candidates.length; i++) {
+          candidates[i] =
+              new RimeCandidate(this, candidateOffsets[2 * i], candidateOffsets[2 * i + 1]);
+        }
+        menu.candidates = candidates;
+      }
+      return menu.candidates;
+    }
+
+    @Nullable
+    String getSelectKeys() {
+      if (menu == null) return null;
+      if (menu.select_keys == null) menu.select_keys = getString(selectKeysOffset);
+      return menu.select_keys;
+    }
+
+    @Nullable
+    String getCommitTextPreview() {
+      if (commit_text_preview == null) commit_text_preview = getString(commitTextPreviewOffset);
+      return commit_text_preview;
+    }
+
+    @Nullable
+    String[] getSelectLabels() {
+      if (select_labels == null && selectLabelOffsets != null) {
+        final String[] labels = new String[selectLabelOffsets.length];
+        for (int i = 0; i < labels.length; i++) labels[i] = getString(selectLabelOffsets[i]);
+        select_labels = labels;
+      }
+      return select_labels;
     }
   }
 
@@ -130,6 +325,18 @@ public class Rime {
     boolean is_simplified;
     boolean is_traditional;
     boolean is_ascii_punct;
+
+    boolean sameAs(@NonNull RimeStatus o) {
+      return is_disabled == o.is_disabled
+          && is_composing == o.is_composing
+          && is_ascii_mode == o.is_ascii_mode
+          && is_full_shape == o.is_full_shape
+          && is_simplified == o.is_simplified
+          && is_traditional == o.is_traditional
+          && is_ascii_punct == o.is_ascii_punct
+          && TextUtils.equals(schema_id, o.schema_id)
+          && TextUtils.equals(schema_name, o.schema_name);
+    }
   }
 
   /** Rime方案 */
@@ -142,16 +349,20 @@ public class Rime {
     public RimeSchema(String schema_id) {
       Timber.d("RimeSchema() start");
       Object o;
-      o = schema_get_value(schema_id, "schema");
+      o = getSchemaValue(schema_id, "schema");
       if (o == null || !(o instanceof Map)) return;
       Timber.d("RimeSchema() switch");
       schema = (Map<String, Object>) o;
-      o = schema_get_value(schema_id, "switches");
+      o = getSchemaValue(schema_id, "switches");
       if (o == null || !(o instanceof List)) return;
-      switches = (List<Map<String, Object>>) o;
+      // 快照中的列表與開關共享，逐項複製後再篩選，getValue 與 toggleOption 只改副本
+      switches = new ArrayList<>();
+      for (Object item : (List<?>) o) {
+        if (item instanceof Map) switches.add(new HashMap<>((Map<String, Object>) item));
+      }
       check(); // 檢查不在選單中顯示的選項
       Timber.d("RimeSchema() menu");
-      o = schema_get_value(schema_id, "menu");
+      o = getSchemaValue(schema_id, "menu");
       if (o == null || !(o instanceof HashMap)) return;
       Timber.d("RimeSchema() menu.page_size=" + ((Map<Object, Object>) o).get("page_size"));
     }
@@ -164,23 +375,33 @@ public class Rime {
       }
     }
 
+    // 方案開關用到的選項加入界面快照
+    void watchOptions() {
+      for (Map<String, Object> o : switches) {
+        if (o.containsKey("options")) {
+          for (Object option : (List<?>) o.get("options")) watchedOptions.add(option.toString());
+        } else if (o.containsKey("name")) {
+          watchedOptions.add(o.get("name").toString());
+        }
+      }
+    }
+
     public RimeCandidate[] getCandidates() {
       if (switches.isEmpty()) return null;
       RimeCandidate[] candidates = new RimeCandidate[switches.size()];
       int i = 0;
       for (Map<String, Object> o : switches) {
-        candidates[i] = new RimeCandidate();
         final List<?> states = (List<?>) o.get("states");
         Integer value = (Integer) o.get("value");
         if (value == null) value = 0;
-        candidates[i].text = states.get(value).toString();
+        final String text = states.get(value).toString();
 
         String kRightArrow = "→ ";
+        final String comment;
         if (showSwitchArrow)
-          candidates[i].comment =
-              o.containsKey("options") ? "" : kRightArrow + states.get(1 - value).toString();
-        else
-          candidates[i].comment = o.containsKey("options") ? "" : states.get(1 - value).toString();
+          comment = o.containsKey("options") ? "" : kRightArrow + states.get(1 - value).toString();
+        else comment = o.containsKey("options") ? "" : states.get(1 - value).toString();
+        candidates[i] = new RimeCandidate(text, comment);
         i++;
       }
       return candidates;
@@ -228,11 +449,51 @@ public class Rime {
   private static Rime self;
 
   private static final RimeCommit mCommit = new RimeCommit();
-  private static final RimeContext mContext = new RimeContext();
-  private static final RimeStatus mStatus = new RimeStatus();
+  // JNI 寫入上下文快照的緩衝區，只在引擎線程中使用，容量不足時擴大
+  private static ByteBuffer mContextBuffer =
+      ByteBuffer.allocateDirect(16 * 1024).order(ByteOrder.nativeOrder());
+  // 由引擎線程整體替換，界面線程只讀取快照
+  private static volatile RimeContext mContext = new RimeContext();
+  private static volatile RimeStatus mStatus = new RimeStatus();
   private static RimeSchema mSchema;
   private static List<?> mSchemaList;
   private static boolean mOnMessage;
+  // OpenCC 配置名到文件路徑，只記錄存在的文件
+  private static final Map<String, String> openccConfigPaths = new ConcurrentHashMap<>();
+  // 配置快照：每個配置文件或方案整體轉換一次，之後按路徑在 Java 中查找，部署、切換方案或保存選項後失效
+  private static final Map<String, Object> configSnapshots = new ConcurrentHashMap<>();
+  private static final Map<String, Object> schemaSnapshots = new ConcurrentHashMap<>();
+  // 選項只在收到通知或切換方案後重新讀取
+  private static boolean mOptionsDirty = true;
+  // 界面線程讀取的選項、屬性與輸入碼快照，由引擎線程整體替換；界面線程讀取時不等待 librime
+  private static final Set<String> watchedOptions =
+      Collections.newSetFromMap(new ConcurrentHashMap<>());
+  private static final Set<String> watchedProperties =
+      Collections.newSetFromMap(new ConcurrentHashMap<>());
+  private static volatile Map<String, Boolean> mOptions = Collections.emptyMap();
+  private static volatile Map<String, String> mProperties = Collections.emptyMap();
+  private static volatile String mSchemaId;
+  private static volatile String mInput = "";
+  private static volatile int mCaretPos;
+
+  static {
+    // 界面初始化時讀取的選項
+    Collections.addAll(
+        watchedOptions, "_hide_comment", "_hide_candidate", "_hide_key_hint", "_hide_key_symbol");
+  }
+
+  /** 上下文中變化的部分，由 {@link #getContexts()} 返回 */
+  public static final int CHANGED_COMPOSITION = 1;
+
+  public static final int CHANGED_MENU = 1 << 1;
+  public static final int CHANGED_STATUS = 1 << 2;
+  public static final int CHANGED_OPTIONS = 1 << 3;
+
+  // 各部分的版本號，先替換快照再遞增，界面先讀版本號再讀快照；開關顯示設置在主線程中遞增，故用原子計數
+  private static final AtomicInteger mCompositionVersion = new AtomicInteger();
+  private static final AtomicInteger mMenuVersion = new AtomicInteger();
+  private static final AtomicInteger mStatusVersion = new AtomicInteger();
+  private static final AtomicInteger mOptionsVersion = new AtomicInteger();
 
   static {
     System.loadLibrary("rime_jni");
@@ -255,10 +516,22 @@ public class Rime {
 
   public static void setShowSwitches(boolean show) {
     showSwitches = show;
+    mOptionsVersion.incrementAndGet();
   }
 
   public static void setShowSwitchArrow(boolean show) {
     showSwitchArrow = show;
+    mOptionsVersion.incrementAndGet();
+  }
+
+  /** 編碼區（含上屏預覽）的版本號，未變化時可跳過重繪 */
+  public static int getCompositionVersion() {
+    return mCompositionVersion.get();
+  }
+
+  /** 候選列表的版本號，候選區、狀態或開關選項任一變化時改變 */
+  public static int getCandidatesVersion() {
+    return mMenuVersion.get() + mStatusVersion.get() + mOptionsVersion.get();
   }
 
   public static boolean hasMenu() {
@@ -292,12 +565,14 @@ public class Rime {
 
   public static String getCompositionText() {
     RimeComposition composition = getComposition();
-    return (composition == null || composition.preedit == null) ? "" : composition.preedit;
+    if (composition == null) return "";
+    final String preedit = composition.getPreedit();
+    return preedit == null ? "" : preedit;
   }
 
   public static String getComposingText() {
-    if (mContext.commit_text_preview == null) return "";
-    return mContext.commit_text_preview;
+    final String preview = mContext.getCommitTextPreview();
+    return preview == null ? "" : preview;
   }
 
   public Rime(Context context, boolean full_check) {
@@ -306,19 +581,78 @@ public class Rime {
   }
 
   private static void initSchema() {
+    schemaSnapshots.clear();
     mSchemaList = get_schema_list();
     String schema_id = getSchemaId();
+    mSchemaId = schema_id;
     Timber.d("initSchema() RimeSchema");
+    // 方案對象已重建，用戶設置的覆蓋需重新套用；librime 自身的方案選單切換方案時也經過這裏
+    applySchemaPatch();
     mSchema = new RimeSchema(schema_id);
+    mSchema.watchOptions();
+    // 界面在方案切換後立即讀取開關與屬性，此時同步發佈，快照不會是空的
+    mOptionsDirty = true;
     Timber.d("initSchema() getStatus");
     getStatus();
+    publishProperties();
+    publishInput();
     Timber.d("initSchema() done");
   }
 
-  @SuppressWarnings("UnusedReturnValue")
-  private static boolean getStatus() {
-    mSchema.getValue();
-    return get_status(mStatus);
+  /** @return {@link #CHANGED_STATUS} 與 {@link #CHANGED_OPTIONS} 的組合 */
+  private static int getStatus() {
+    int changes = 0;
+    if (mOptionsDirty) {
+      mOptionsDirty = false;
+      mSchema.getValue();
+      publishOptions();
+      changes |= CHANGED_OPTIONS;
+    }
+    final RimeStatus status = new RimeStatus();
+    if (get_status(status) && !status.sameAs(mStatus)) {
+      mStatus = status;
+      changes |= CHANGED_STATUS;
+    }
+    if ((changes & CHANGED_OPTIONS) != 0) mOptionsVersion.incrementAndGet();
+    if ((changes & CHANGED_STATUS) != 0) mStatusVersion.incrementAndGet();
+    return changes;
+  }
+
+  // 在引擎線程中重新讀取界面用到的選項，值有變化時替換快照
+  private static boolean publishOptions() {
+    final Map<String, Boolean> options = new HashMap<>();
+    for (String option : watchedOptions) options.put(option, get_option(option));
+    if (options.equals(mOptions)) return false;
+    mOptions = options;
+    return true;
+  }
+
+  private static boolean publishProperties() {
+    if (watchedProperties.isEmpty()) return false;
+    final Map<String, String> properties = new HashMap<>();
+    for (String prop : watchedProperties) properties.put(prop, get_property(prop));
+    if (properties.equals(mProperties)) return false;
+    mProperties = properties;
+    return true;
+  }
+
+  // 首次讀取的選項或屬性在引擎線程中補發快照，值有變化時通知界面重新套用
+  private static void republish() {
+    final boolean options = publishOptions();
+    final boolean properties = publishProperties();
+    if (!options && !properties) return;
+    if (options) mOptionsVersion.incrementAndGet();
+    RimeEngine.postResult(
+        () -> {
+          final Trime trime = Trime.getServiceOrNull();
+          if (trime != null) trime.textInputManager.onOptionsPublished();
+        });
+  }
+
+  private static void publishInput() {
+    final String input = get_input();
+    mInput = input == null ? "" : input;
+    mCaretPos = get_caret_pos();
   }
 
   private static void init(boolean full_check) {
@@ -326,6 +660,7 @@ public class Rime {
         "\t<TrimeInit>\t" + Thread.currentThread().getStackTrace()[2].getMethodName() + "\t";
     Timber.d(methodName);
     mOnMessage = false;
+    clearConfigCache();
     final AppPrefs appPrefs = AppPrefs.defaultInstance();
     final String sharedDataDir = appPrefs.getConf().getSharedDataDir();
     final String userDataDir = appPrefs.getConf().getUserDataDir();
@@ -353,8 +688,12 @@ public class Rime {
   }
 
   public static void destroy() {
-    destroy_session();
-    finalize1();
+    RimeEngine.run(
+        () -> {
+          destroy_session();
+          finalize1();
+          clearConfigCache();
+        });
     self = null;
   }
 
@@ -363,16 +702,56 @@ public class Rime {
   }
 
   public static boolean getCommit() {
-    return get_commit(mCommit);
+    return RimeEngine.call(() -> get_commit(mCommit));
   }
 
-  public static void getContexts() {
+  /** 在引擎線程中取出上屏文字，沒有上屏時返回 null */
+  @Nullable
+  static String takeCommitText() {
+    return get_commit(mCommit) ? mCommit.text : null;
+  }
+
+  /** 上屏文字，在主線程中回調 */
+  public interface OnCommitListener {
+    void onCommit(@Nullable String commit);
+  }
+
+  /** 在引擎線程中取出上屏文字，排在之前的按鍵結果之後送回主線程 */
+  public static void takeCommitAsync(@NonNull OnCommitListener listener) {
+    RimeEngine.post(
+        () -> {
+          final String commit = takeCommitText();
+          RimeEngine.postResult(() -> listener.onCommit(commit));
+        });
+  }
+
+  /**
+   * 更新上下文和狀態快照，未變化的部分保留舊快照
+   *
+   * @return 變化部分的組合，見 {@link #CHANGED_COMPOSITION} 等
+   */
+  public static int getContexts() {
     Timber.i("\t<TrimeInput>\tgetContexts() get_context");
     // get_context() 是耗时操作
-    get_context(mContext);
+    int size = get_context(mContextBuffer);
+    if (size > mContextBuffer.capacity()) {
+      mContextBuffer = ByteBuffer.allocateDirect(size * 2).order(ByteOrder.nativeOrder());
+      size = get_context(mContextBuffer);
+    }
+    int changes = 0;
+    if (size >= 0 && size <= mContextBuffer.capacity()) {
+      final RimeContext context = new RimeContext(mContextBuffer, size);
+      changes = context.diff(mContext);
+      if (changes != 0) mContext = context;
+      if ((changes & CHANGED_COMPOSITION) != 0) mCompositionVersion.incrementAndGet();
+      if ((changes & CHANGED_MENU) != 0) mMenuVersion.incrementAndGet();
+    }
+    if ((changes & CHANGED_COMPOSITION) != 0) publishInput();
+    publishProperties();
     Timber.i("\t<TrimeInput>\tgetContexts() getStatus");
-    getStatus();
-    Timber.i("\t<TrimeInput>\tgetContexts() finish");
+    changes |= getStatus();
+    Timber.i("\t<TrimeInput>\tgetContexts() finish, changes=%s", changes);
+    return changes;
   }
 
   public static boolean isVoidKeycode(int keycode) {
@@ -395,10 +774,38 @@ public class Rime {
 
   // KeyProcess 调用JNI方法发送keycode和mask
   public static boolean onKey(int[] event) {
-    if (event != null && event.length == 2) return onKey(event[0], event[1]);
+    if (event != null && event.length == 2)
+      return RimeEngine.call(() -> onKey(event[0], event[1]));
     return false;
   }
 
+  /** 按鍵處理結果，在主線程中回調 */
+  public interface OnKeyListener {
+    /**
+     * @param processed Rime 是否處理了按鍵
+     * @param commit 按鍵產生的上屏文字，沒有時爲 null
+     */
+    void onKeyProcessed(boolean processed, @Nullable String commit);
+  }
+
+  /**
+   * 異步處理按鍵：按鍵在引擎線程中按序處理，並在同一任務中取出上屏文字，結果按序送回主線程
+   *
+   * @param event {@link com.osfans.trime.ime.keyboard.Event#getRimeEvent Rime按鍵}
+   * @param onEngine 在引擎線程中、按鍵處理後立即執行，可爲 null
+   * @param listener 在主線程中接收結果
+   */
+  public static void onKeyAsync(
+      int[] event, @Nullable OnKeyListener onEngine, @NonNull OnKeyListener listener) {
+    RimeEngine.post(
+        () -> {
+          final boolean processed = event != null && event.length == 2 && onKey(event[0], event[1]);
+          final String commit = takeCommitText();
+          if (onEngine != null) onEngine.onKeyProcessed(processed, commit);
+          RimeEngine.postResult(() -> listener.onKeyProcessed(processed, commit));
+        });
+  }
+
   public static boolean isValidText(CharSequence text) {
     if (text == null || text.length() == 0) return false;
     int ch = text.toString().codePointAt(0);
@@ -407,10 +814,14 @@ public class Rime {
 
   public static boolean onText(CharSequence text) {
     if (!isValidText(text)) return false;
-    boolean b = simulate_key_sequence(text.toString().replace("{}", "{braceleft}{braceright}"));
-    Timber.i("simulate key sequence = %s, input = %s", b, text);
-    getContexts();
-    return b;
+    final String sequence = text.toString().replace("{}", "{braceleft}{braceright}");
+    return RimeEngine.call(
+        () -> {
+          boolean b = simulate_key_sequence(sequence);
+          Timber.i("simulate key sequence = %s, input = %s", b, text);
+          getContexts();
+          return b;
+        });
   }
 
   public static RimeCandidate[] getCandidates() {
@@ -424,10 +835,13 @@ public class Rime {
   }
 
   public static String[] getSelectLabels() {
-    if (mContext != null && mContext.size() > 0) {
-      if (mContext.select_labels != null) return mContext.select_labels;
-      if (mContext.menu.select_keys != null) return mContext.menu.select_keys.split("\\B");
-      int n = mContext.size();
+    final RimeContext context = mContext;
+    if (context != null && context.size() > 0) {
+      final String[] selectLabels = context.getSelectLabels();
+      if (selectLabels != null) return selectLabels;
+      final String selectKeys = context.getSelectKeys();
+      if (selectKeys != null) return selectKeys.split("\\B");
+      int n = context.size();
       String[] labels = new String[n];
       for (int i = 0; i < n; i++) {
         labels[i] = String.valueOf((i + 1) % 10);
@@ -442,61 +856,107 @@ public class Rime {
   }
 
   public static boolean commitComposition() {
-    boolean b = commit_composition();
-    getContexts();
-    return b;
+    return RimeEngine.call(
+        () -> {
+          boolean b = commit_composition();
+          getContexts();
+          return b;
+        });
   }
 
   public static void clearComposition() {
-    clear_composition();
-    getContexts();
+    RimeEngine.run(
+        () -> {
+          clear_composition();
+          getContexts();
+        });
   }
 
   public static boolean selectCandidate(int index) {
-    boolean b = select_candidate_on_current_page(index);
-    getContexts();
-    return b;
+    return RimeEngine.call(
+        () -> {
+          boolean b = select_candidate_on_current_page(index);
+          getContexts();
+          return b;
+        });
   }
 
   public static boolean deleteCandidate(int index) {
-    boolean b = delete_candidate_on_current_page(index);
-    getContexts();
-    return b;
+    return RimeEngine.call(
+        () -> {
+          boolean b = delete_candidate_on_current_page(index);
+          getContexts();
+          return b;
+        });
   }
 
   public static void setOption(String option, boolean value) {
-    if (mOnMessage) return;
-    set_option(option, value);
+    RimeEngine.run(
+        () -> {
+          if (mOnMessage) return;
+          set_option(option, value);
+        });
+  }
+
+  /** 保存切換過的 save_options，選項切換時只記錄在內存中 */
+  public static void saveOptions() {
+    RimeEngine.post(
+        () -> {
+          flush_options();
+          // user.yaml 已改寫
+          configSnapshots.remove("user");
+        });
   }
 
+  /**
+   * 界面線程中讀取快照。方案的開關在切換方案時已同步發佈；其他選項首次讀取時先返回 false，
+   * 引擎線程讀取後發佈，並由 {@link com.osfans.trime.ime.text.TextInputManager#onOptionsPublished} 重新套用
+   */
   public static boolean getOption(String option) {
-    return get_option(option);
+    if (RimeEngine.isEngineThread()) return get_option(option);
+    final Boolean value = mOptions.get(option);
+    if (value != null) return value;
+    if (watchedOptions.add(option)) RimeEngine.post(Rime::republish);
+    return false;
   }
 
   public static void toggleOption(String option) {
-    boolean b = getOption(option);
-    setOption(option, !b);
+    RimeEngine.run(
+        () -> {
+          boolean b = getOption(option);
+          setOption(option, !b);
+        });
   }
 
   public static void toggleOption(int i) {
-    mSchema.toggleOption(i);
+    RimeEngine.run(() -> mSchema.toggleOption(i));
   }
 
   public static void setProperty(String prop, String value) {
-    if (mOnMessage) return;
-    set_property(prop, value);
+    RimeEngine.run(
+        () -> {
+          if (mOnMessage) return;
+          set_property(prop, value);
+        });
   }
 
+  /** 界面線程中讀取快照；首次讀取的屬性先返回 null，發佈後與選項一樣通知界面重新套用 */
   public static String getProperty(String prop) {
-    return get_property(prop);
+    if (RimeEngine.isEngineThread()) return get_property(prop);
+    final Map<String, String> properties = mProperties;
+    if (properties.containsKey(prop)) return properties.get(prop);
+    if (watchedProperties.add(prop)) RimeEngine.post(Rime::republish);
+    return null;
   }
 
+  /** 界面線程中返回方案切換時記錄的方案，未初始化時爲 null */
   public static String getSchemaId() {
-    return get_current_schema();
+    if (RimeEngine.isEngineThread()) return get_current_schema();
+    return mSchemaId;
   }
 
-  private static boolean isEmpty(@NonNull String s) {
-    return s.contentEquals(".default"); // 無方案
+  private static boolean isEmpty(@Nullable String s) {
+    return s == null || s.contentEquals(".default"); // 無方案
   }
 
   public static boolean isEmpty() {
@@ -531,69 +991,65 @@ public class Rime {
 
   private static boolean selectSchema(String schema_id) {
     Timber.d("selectSchema() schema_id=" + schema_id);
-    overWriteSchema(schema_id);
-    boolean b = select_schema(schema_id);
-    getContexts();
-    return b;
+    return RimeEngine.call(
+        () -> {
+          boolean b = selectSchemaPatched(schema_id);
+          getContexts();
+          return b;
+        });
   }
 
   // 刷新当前输入方案
   public static void applySchemaChange() {
-    String schema_id = getSchemaId();
-    // 实测直接select_schema(schema_id)方案没有重新载入，切换到不存在的方案，再切回去（会产生1秒的额外耗时）.需要找到更好的方法
-    // 不发生覆盖则不生效
-    if (overWriteSchema(schema_id)) {
-      select_schema("nill");
-      select_schema(schema_id);
-    }
-    getContexts();
-  }
-  // 临时修改scheme文件参数
-  // 临时修改build后的scheme可以避免build过程的耗时
-  // 另外实际上jni读入yaml、修改、导出的效率并不高
-  private static boolean overWriteSchema(String schema_id) {
-    Map<String, String> map = new HashMap<>();
-    String page_size = AppPrefs.defaultInstance().getKeyboard().getCandidatePageSize();
-    Timber.d("overWriteSchema() page_size=" + page_size);
-    if (!page_size.equals("0")) {
-      map.put("page_size", page_size);
-    }
-    if (map.isEmpty()) return false;
-    return overWriteSchema(schema_id, map);
-  }
-
-  private static boolean overWriteSchema(String schema_id, Map<String, String> map) {
-    if (schema_id == null) schema_id = getSchemaId();
-    File file =
-        new File(Rime.get_user_data_dir() + File.separator + "build", schema_id + ".schema.yaml");
-    try {
-      FileReader in = new FileReader(file);
-      BufferedReader bufIn = new BufferedReader(in);
-      CharArrayWriter tempStream = new CharArrayWriter();
-      String line = null;
-      read:
-      while ((line = bufIn.readLine()) != null) {
-        for (String k : map.keySet()) {
-          String key = k + ": ";
-          if (line.contains(key)) {
-            String value = ": " + map.get(k) + System.getProperty("line.separator");
-            tempStream.write(line.replaceFirst(":.+", value));
-            map.remove(k);
-            continue read;
-          }
-        }
-        tempStream.write(line);
-        tempStream.append(System.getProperty("line.separator"));
-      }
-      bufIn.close();
-      FileWriter out = new FileWriter(file);
-      tempStream.writeTo(out);
-      out.close();
-    } catch (IOException e) {
-      e.printStackTrace();
-      return false;
-    }
-    return map.isEmpty();
+    RimeEngine.run(
+        () -> {
+          // 覆盖只作用于会话中的方案对象，重新选择即可生效；取消覆盖时也要重新选择以恢复方案中的值
+          selectSchemaPatched(getSchemaId());
+          getContexts();
+        });
+  }
+
+  /** 重新部署當前方案後調用，使會話載入新的方案 */
+  public static void reloadSchema() {
+    RimeEngine.run(
+        () -> {
+          final String schema_id = getSchemaId();
+          schemaSnapshots.remove(schema_id);
+          // 方案文件已重新生成，直接從文件載入，緩存中的舊配置隨舊方案釋放。
+          // 緩存的配置未被修改，釋放時不會寫回文件覆蓋新生成的方案
+          final File file =
+              new File(
+                  AppPrefs.defaultInstance().getConf().getUserDataDir(),
+                  "build" + File.separator + schema_id + ".schema.yaml");
+          if (reload_schema(schema_id, file.getPath())) applySchemaPatch();
+          else selectSchemaPatched(schema_id);
+          getContexts();
+        });
+  }
+
+  // 用户设置覆盖的方案配置项
+  @NonNull
+  private static Map<String, String> getSchemaPatch() {
+    final Map<String, String> patch = new HashMap<>();
+    final String page_size = AppPrefs.defaultInstance().getKeyboard().getCandidatePageSize();
+    if (!page_size.equals("0")) patch.put("menu/page_size", page_size);
+    return patch;
+  }
+
+  // 在会话中的方案对象上覆盖设置，不改写 build 中的方案文件。方案对象每次重建都要调用，见 initSchema
+  private static void applySchemaPatch() {
+    final Map<String, String> patch = getSchemaPatch();
+    if (patch.isEmpty()) return;
+    Timber.d("applySchemaPatch() patch=%s", patch);
+    patch_schema(patch.keySet().toArray(new String[0]), patch.values().toArray(new String[0]));
+  }
+
+  // librime 切换方案时发出的通知会经 initSchema 覆盖设置，这里再覆盖一次，不依赖通知
+  private static boolean selectSchemaPatched(String schema_id) {
+    schemaSnapshots.remove(schema_id);
+    final boolean b = select_schema(schema_id);
+    if (b) applySchemaPatch();
+    return b;
   }
 
   public static boolean selectSchema(int id) {
@@ -611,7 +1067,7 @@ public class Rime {
       if (full_check) {
         OpenCCDictManager.internalDeploy();
       }
-      self = new Rime(context, full_check);
+      RimeEngine.run(() -> new Rime(context, full_check));
     }
     return self;
   }
@@ -621,48 +1077,149 @@ public class Rime {
   }
 
   public static String RimeGetInput() {
+    if (!RimeEngine.isEngineThread()) return mInput;
     String s = get_input();
     return s == null ? "" : s;
   }
 
   public static int RimeGetCaretPos() {
+    if (!RimeEngine.isEngineThread()) return mCaretPos;
     return get_caret_pos();
   }
 
   public static void RimeSetCaretPos(int caret_pos) {
-    set_caret_pos(caret_pos);
-    getContexts();
+    RimeEngine.run(
+        () -> {
+          set_caret_pos(caret_pos);
+          getContexts();
+        });
   }
 
+  // 通知在調用 librime 的線程中到達，界面相關的處理交回主線程
   public static void handleRimeNotification(String message_type, String message_value) {
     mOnMessage = true;
     final RimeEvent event = RimeEvent.create(message_type, message_value);
     // Timber.i("message: [%s] %s", message_type, message_value);
     Timber.i("Notification: %s", event);
-    final Trime trime = Trime.getService();
-    Timber.i("Notification: getService done, before det SchemaEvent");
     if (event instanceof RimeEvent.SchemaEvent) {
       initSchema();
-      trime.initKeyboard();
-      Timber.i("Notification: solve SchemaEvent");
+      RimeEngine.postResult(
+          () -> {
+            final Trime trime = Trime.getServiceOrNull();
+            if (trime != null) trime.initKeyboard();
+            Timber.i("Notification: solve SchemaEvent");
+          });
     } else if (event instanceof RimeEvent.OptionEvent) {
+      mOptionsDirty = true;
       getStatus();
       getContexts(); // 切換中英文、簡繁體時更新候選
       final boolean value = !message_value.startsWith("!");
       final String option = message_value.substring(value ? 0 : 1);
-      trime.textInputManager.onOptionChanged(option, value);
+      RimeEngine.postResult(
+          () -> {
+            final Trime trime = Trime.getServiceOrNull();
+            if (trime != null) trime.textInputManager.onOptionChanged(option, value);
+          });
     }
     mOnMessage = false;
   }
 
   public static String openccConvert(String line, String name) {
     if (!TextUtils.isEmpty(name)) {
-      final File f = new File(DataManager.getDataDir("opencc"), name);
-      if (f.exists()) return opencc_convert(line, f.getAbsolutePath());
+      String path = openccConfigPaths.get(name);
+      if (path == null) {
+        final File f = new File(DataManager.getDataDir("opencc"), name);
+        if (!f.exists()) return line;
+        path = f.getAbsolutePath();
+        openccConfigPaths.put(name, path);
+      }
+      return opencc_convert(line, path);
     }
     return line;
   }
 
+  /**
+   * 讀取配置項，返回的對象在快照中共享，調用者不可修改
+   *
+   * @param name 配置名稱，不含yaml後綴
+   * @param key 以 "/" 分隔的路徑，空串表示整個配置
+   */
+  @Nullable
+  public static Object getConfigValue(@NonNull String name, @NonNull String key) {
+    Object root = configSnapshots.get(name);
+    if (root == null) {
+      root = config_get_map(name, "");
+      if (root == null) return null; // 配置不存在時不緩存，部署後可再讀取
+      configSnapshots.put(name, root);
+    }
+    return lookup(root, key);
+  }
+
+  /** 同 {@link #getConfigValue}，不是映射時返回 null */
+  @Nullable
+  public static Map<String, Map<String, ?>> getConfigMap(@NonNull String name, @NonNull String key) {
+    final Object o = getConfigValue(name, key);
+    return o instanceof Map ? (Map<String, Map<String, ?>>) o : null;
+  }
+
+  /** 讀取方案配置項，返回的對象在快照中共享，調用者不可修改 */
+  @Nullable
+  public static Object getSchemaValue(@NonNull String schema_id, @NonNull String key) {
+    Object root = schemaSnapshots.get(schema_id);
+    if (root == null) {
+      root = schema_get_value(schema_id, "");
+      if (root == null) return null;
+      schemaSnapshots.put(schema_id, root);
+    }
+    return lookup(root, key);
+  }
+
+  // 與 librime 的路徑規則一致：映射按鍵名查找，列表按 @序號 或 @last 查找
+  @Nullable
+  private static Object lookup(@NonNull Object root, @NonNull String key) {
+    Object o = root;
+    final int n = key.length();
+    int start = 0;
+    while (o != null && start < n) {
+      int end = key.indexOf('/', start);
+      if (end < 0) end = n;
+      final String k = key.substring(start, end);
+      if (o instanceof Map) o = ((Map<?, ?>) o).get(k);
+      else if (o instanceof List && k.startsWith("@")) o = getListItem((List<?>) o, k);
+      else o = null;
+      start = end + 1;
+    }
+    return o;
+  }
+
+  @Nullable
+  private static Object getListItem(@NonNull List<?> list, @NonNull String k) {
+    if (k.equals("@last")) return list.isEmpty() ? null : list.get(list.size() - 1);
+    try {
+      final int i = Integer.parseInt(k.substring(1));
+      return i >= 0 && i < list.size() ? list.get(i) : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** 部署或重新初始化後，已讀取的配置快照全部失效 */
+  public static void clearConfigCache() {
+    configSnapshots.clear();
+    schemaSnapshots.clear();
+  }
+
+  /** 配置文件在 librime 之外被改寫後調用 */
+  public static void clearConfigCache(@NonNull String name) {
+    configSnapshots.remove(name);
+  }
+
+  /** OpenCC 詞典重新部署後清空配置路徑和 JNI 中緩存的轉換器 */
+  public static void clearOpenccCache() {
+    openccConfigPaths.clear();
+    opencc_clear_cache();
+  }
+
   public static void check(boolean full_check) {
     if (start_maintenance(full_check) && is_maintenance_mode()) {
       join_maintenance_thread();
@@ -670,7 +1227,7 @@ public class Rime {
   }
 
   public static boolean syncUserData(Context context) {
-    boolean b = sync_user_data();
+    boolean b = RimeEngine.call(Rime::sync_user_data);
     destroy();
     get(context, true);
     return b;
@@ -720,10 +1277,21 @@ public class Rime {
           return true;
         }
       } else {
-        return Rime.deploy_config_file(file_name, "config_version");
+        return deployConfigFile(file_name);
       }
     }
-    return Rime.deploy_config_file(file_name, "config_version");
+    return deployConfigFile(file_name);
+  }
+
+  /**
+   * 部署config文件到build目录，该配置已读取的快照随之失效
+   *
+   * @param file_name 配置文件名，含yaml后缀
+   */
+  public static boolean deployConfigFile(@NonNull String file_name) {
+    final boolean b = deploy_config_file(file_name, "config_version");
+    configSnapshots.remove(file_name.replaceFirst("\\.yaml$", ""));
+    return b;
   }
 
   public static native boolean sync_user_data();
@@ -749,13 +1317,21 @@ public class Rime {
   // output
   public static native boolean get_commit(RimeCommit commit);
 
-  public static native boolean get_context(RimeContext context);
+  /**
+   * 把當前上下文寫入直接緩衝區
+   *
+   * @return 快照的字節數，大於緩衝區容量時須擴大後重試；失敗時返回 -1
+   */
+  public static native int get_context(ByteBuffer buffer);
 
   public static native boolean get_status(RimeStatus status);
 
   // runtime options
   public static native void set_option(String option, boolean value);
 
+  /** 把 save_options 中已切換的選項一次寫入 user.yaml */
+  public static native void flush_options();
+
   public static native boolean get_option(String option);
 
   public static native void set_property(String prop, String value);
@@ -768,6 +1344,12 @@ public class Rime {
 
   public static native boolean select_schema(String schema_id);
 
+  /** 在當前會話的方案對象上把 keys 對應的設置覆蓋爲 values，不修改方案配置 */
+  public static native void patch_schema(String[] keys, String[] values);
+
+  /** 從 file 讀取方案並套用到當前會話，不經 librime 的配置緩存 */
+  public static native boolean reload_schema(String schema_id, String file);
+
   // configuration
   public static native Boolean config_get_bool(String name, String key);
 
@@ -853,6 +1435,8 @@ public class Rime {
 
   public static native String opencc_convert(String line, String name);
 
+  public static native void opencc_clear_cache();
+
   public static native void opencc_convert_dictionary(
       String inputFileName, String outputFileName, String formatFrom, String formatTo);
 
@@ -0,0 +1,77 @@
+package com.osfans.trime.core
+
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+import timber.log.Timber
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+
+/**
+ * Single-threaded executor which owns the librime session.
+ *
+ * Every JNI call that reads or mutates the session goes through this thread, so key events are
+ * processed strictly in the order they were queued and the UI thread never runs `process_key`
+ * itself. Results which touch the editor or the views are handed back with [postResult] and
+ * delivered on the main thread in the same order.
+ */
+object RimeEngine {
+    private val thread = HandlerThread("RimeEngine").apply { start() }
+    private val engineHandler = Handler(thread.looper)
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val results = ConcurrentLinkedQueue<Runnable>()
+
+    @JvmStatic
+    val isEngineThread: Boolean
+        get() = Looper.myLooper() == thread.looper
+
+    /** Queues [task] to run on the engine thread after all previously queued tasks. */
+    @JvmStatic
+    fun post(task: Runnable) {
+        engineHandler.post(task)
+    }
+
+    /**
+     * Runs [task] on the engine thread and waits for its result. Runs inline when already on the
+     * engine thread. Pending results are never delivered from here, only from the main looper, so
+     * a caller in the middle of a draw or a touch dispatch is not re-entered. UI reads should use
+     * the snapshots published by [Rime] instead of waiting on this.
+     */
+    @JvmStatic
+    fun <T> call(task: Callable<T>): T {
+        if (isEngineThread) return task.call()
+        val future = FutureTask(task)
+        engineHandler.post(future)
+        return try {
+            future.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    /** Same as [call] for tasks without result. */
+    @JvmStatic
+    fun run(task: Runnable) {
+        call { task.run() }
+    }
+
+    /** Hands [result] back to the main thread, keeping the order of submission. */
+    @JvmStatic
+    fun postResult(result: Runnable) {
+        results.add(result)
+        mainHandler.post { drainResults() }
+    }
+
+    private fun drainResults() {
+        while (true) {
+            val result = results.poll() ?: return
+            try {
+                result.run()
+            } catch (e: Exception) {
+                Timber.e(e, "Failed to deliver Rime result")
+            }
+        }
+    }
+}
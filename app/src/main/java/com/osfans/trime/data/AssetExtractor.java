@@ -0,0 +1,254 @@
+package com.osfans.trime.data;
+
+import android.content.res.AssetManager;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import timber.log.Timber;
+
+/**
+ * 把 APK 中 rime 目录下的资源解压到共享目录
+ *
+ * <p>构建时生成的 rime.manifest 列出每个资源文件的大小与 CRC32。解压后记录目标文件的大小、修改时间与资源的 CRC32，
+ * 覆盖时资源未变且目标文件未被改动的文件直接跳过，无需读取文件内容。待复制的文件并行写入。
+ */
+final class AssetExtractor {
+  private static final String MANIFEST = "rime.manifest";
+  private static final String RECORD = "trime_assets.txt";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_THREADS = 4;
+
+  private final AssetManager assets;
+  private final String root;
+  private final File targetDir;
+  private final File record;
+  // 资源路径（相对于 root）到大小与 CRC32，无清单时为 null
+  private Map<String, long[]> manifest;
+  private boolean manifestLoaded;
+
+  /**
+   * @param root 资源中的目录
+   * @param targetDir 解压到的目录
+   * @param recordDir 保存解压记录的目录
+   */
+  AssetExtractor(
+      @NonNull AssetManager assets,
+      @NonNull String root,
+      @NonNull File targetDir,
+      @NonNull File recordDir) {
+    this.assets = assets;
+    this.root = root;
+    this.targetDir = targetDir;
+    this.record = new File(recordDir, RECORD);
+  }
+
+  /**
+   * 解压 path 对应的文件或目录，path 为空时解压全部资源
+   *
+   * @param overwrite 为 false 时只补全缺失的文件；为 true 时覆盖资源或目标文件有变化的文件
+   * @return 全部文件复制成功时返回 true
+   */
+  synchronized boolean extract(@NonNull String path, boolean overwrite) {
+    final Map<String, long[]> entries = getManifest();
+    final List<String> files = entries != null ? filter(entries, path) : list(path);
+    final Map<String, long[]> installed = loadRecord();
+
+    final List<String> pending = new ArrayList<>();
+    for (String name : files) {
+      final File target = new File(targetDir, name);
+      if (target.exists()) {
+        if (!overwrite || isUnchanged(target, entries, installed, name)) continue;
+      }
+      final File parent = target.getParentFile();
+      if (parent != null && !parent.exists()) // noinspection ResultOfMethodCallIgnored
+      parent.mkdirs();
+      pending.add(name);
+    }
+    if (pending.isEmpty()) return true;
+    Timber.d("extract %d of %d assets under %s", pending.size(), files.size(), path);
+
+    final Map<String, long[]> copied = new ConcurrentHashMap<>();
+    final List<Callable<Boolean>> tasks = new ArrayList<>();
+    for (String name : pending) {
+      tasks.add(
+          () -> {
+            final File target = copy(name);
+            if (target == null) return false;
+            final long[] entry = entries != null ? entries.get(name) : null;
+            copied.put(
+                name,
+                new long[] {target.length(), target.lastModified(), entry != null ? entry[1] : -1});
+            return true;
+          });
+    }
+    boolean success = true;
+    final int threads = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      for (Future<Boolean> future : executor.invokeAll(tasks)) success &= future.get();
+    } catch (InterruptedException | ExecutionException e) {
+      Timber.e(e, "extract assets under %s", path);
+      success = false;
+    } finally {
+      executor.shutdown();
+    }
+    installed.putAll(copied);
+    saveRecord(installed);
+    return success;
+  }
+
+  // 资源未变，且目标文件仍是上次解压的文件
+  private static boolean isUnchanged(
+      @NonNull File target,
+      @Nullable Map<String, long[]> entries,
+      @NonNull Map<String, long[]> installed,
+      @NonNull String name) {
+    if (entries == null) return false;
+    final long[] entry = entries.get(name);
+    final long[] last = installed.get(name);
+    if (entry == null || last == null) return false;
+    final long length = target.length();
+    return entry[1] == last[2]
+        && length == entry[0]
+        && length == last[0]
+        && target.lastModified() == last[1];
+  }
+
+  // 先写入临时文件再改名，中断时不留下不完整的文件
+  @Nullable
+  private File copy(@NonNull String name) {
+    final File target = new File(targetDir, name);
+    final File temp = new File(target.getPath() + ".tmp");
+    try (InputStream in = assets.open(root + "/" + name);
+        FileOutputStream out = new FileOutputStream(temp)) {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+    } catch (IOException e) {
+      Timber.e(e, "copy asset %s", name);
+      // noinspection ResultOfMethodCallIgnored
+      temp.delete();
+      return null;
+    }
+    if (!temp.renameTo(target)) {
+      Timber.e("rename %s to %s", temp, target);
+      // noinspection ResultOfMethodCallIgnored
+      temp.delete();
+      return null;
+    }
+    return target;
+  }
+
+  @NonNull
+  private static List<String> filter(@NonNull Map<String, long[]> entries, @NonNull String path) {
+    final List<String> files = new ArrayList<>();
+    if (path.isEmpty()) {
+      files.addAll(entries.keySet());
+      return files;
+    }
+    final String dir = path + "/";
+    for (String name : entries.keySet()) {
+      if (name.equals(path) || name.startsWith(dir)) files.add(name);
+    }
+    return files;
+  }
+
+  // 没有清单时遍历 AssetManager，与原先的 copyFileOrDir 相同
+  @NonNull
+  private List<String> list(@NonNull String path) {
+    final List<String> files = new ArrayList<>();
+    try {
+      collect(path, files);
+    } catch (IOException e) {
+      Timber.e(e, "list assets under %s", path);
+    }
+    return files;
+  }
+
+  private void collect(@NonNull String path, @NonNull List<String> files) throws IOException {
+    final String[] children = assets.list(path.isEmpty() ? root : root + "/" + path);
+    if (children == null || children.length == 0) {
+      if (!path.isEmpty()) files.add(path);
+      return;
+    }
+    for (String child : children) collect(path.isEmpty() ? child : path + "/" + child, files);
+  }
+
+  @Nullable
+  private Map<String, long[]> getManifest() {
+    if (!manifestLoaded) {
+      manifestLoaded = true;
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(assets.open(MANIFEST)))) {
+        manifest = parse(reader, 3);
+      } catch (IOException e) {
+        Timber.w("no asset manifest, list assets instead");
+      }
+    }
+    return manifest;
+  }
+
+  @NonNull
+  private Map<String, long[]> loadRecord() {
+    if (!record.isFile()) return new HashMap<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(record))) {
+      return parse(reader, 4);
+    } catch (IOException e) {
+      Timber.w(e, "read %s", record);
+      return new HashMap<>();
+    }
+  }
+
+  private void saveRecord(@NonNull Map<String, long[]> installed) {
+    final File parent = record.getParentFile();
+    if (parent != null && !parent.exists()) // noinspection ResultOfMethodCallIgnored
+    parent.mkdirs();
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(record))) {
+      for (Map.Entry<String, long[]> entry : installed.entrySet()) {
+        writer.write(entry.getKey());
+        for (long value : entry.getValue()) writer.write("\t" + value);
+        writer.write("\n");
+      }
+    } catch (IOException e) {
+      Timber.w(e, "write %s", record);
+    }
+  }
+
+  // 每行为制表符分隔的路径与 fields - 1 个整数
+  @NonNull
+  private static Map<String, long[]> parse(@NonNull BufferedReader reader, int fields)
+      throws IOException {
+    final Map<String, long[]> entries = new HashMap<>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      final String[] parts = line.split("\t");
+      if (parts.length != fields) continue;
+      final long[] values = new long[fields - 1];
+      try {
+        for (int i = 1; i < fields; i++) values[i - 1] = Long.parseLong(parts[i]);
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      entries.put(parts[0], values);
+    }
+    return entries;
+  }
+}
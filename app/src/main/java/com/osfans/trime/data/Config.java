@@ -21,15 +21,10 @@ package com.osfans.trime.data;
 import android.content.Context;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
-import android.graphics.NinePatch;
-import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.GradientDrawable;
-import android.graphics.drawable.NinePatchDrawable;
 import android.os.SystemClock;
 import android.util.TypedValue;
 import androidx.annotation.NonNull;
@@ -37,6 +32,7 @@ import androidx.annotation.Nullable;
 import com.osfans.trime.core.Rime;
 import com.osfans.trime.ime.enums.PositionType;
 import com.osfans.trime.ime.enums.SymbolKeyboardType;
+import com.osfans.trime.ime.keyboard.Event;
 import com.osfans.trime.ime.keyboard.Key;
 import com.osfans.trime.ime.keyboard.Sound;
 import com.osfans.trime.ime.symbol.TabManager;
@@ -47,14 +43,15 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.regex.Pattern;
 import timber.log.Timber;
 
@@ -66,6 +63,7 @@ public class Config {
 
   private static Config self = null;
   private static AssetManager assetManager = null;
+  private static AssetExtractor assetExtractor = null;
 
   private static final AppPrefs appPrefs = AppPrefs.defaultInstance();
 
@@ -78,6 +76,8 @@ public class Config {
   }
 
   private Map<?, ?> mStyle, mDefaultStyle;
+  // 编译后的主题，渲染时读取
+  private Theme theme = Theme.EMPTY;
   private String themeName, soundPackageName, currentSound;
   private static final String defaultName = "trime";
   private String schema_id, colorID;
@@ -101,6 +101,9 @@ public class Config {
     Timber.d(methodName);
     self = this;
     assetManager = context.getAssets();
+    assetExtractor =
+        new AssetExtractor(
+            assetManager, RIME, new File(sharedDataDir), new File(userDataDir, "build"));
     themeName = appPrefs.getLooks().getSelectedTheme();
     soundPackageName = appPrefs.getKeyboard().getSoundPackage();
 
@@ -183,14 +186,15 @@ public class Config {
     String defaultFile = "trime.yaml";
     Timber.d(methodName + "copy");
     if (isOverwrite) {
+      // 升级时只覆盖内容有变化的文件
       copyFileOrDir("", true);
     } else if (isExist) {
-      String path = new File("", defaultFile).getPath();
-      copyFileOrDir(path, false);
+      copyFileOrDir(defaultFile, false);
     } else {
       copyFileOrDir("", false);
     }
     Timber.d(methodName + "copy2");
+    // 共享目录暂不可写时等待重试，已解压的文件不再复制
     while (!new File(sharedDataDir, defaultFile).exists()) {
       SystemClock.sleep(100);
       copyFileOrDir("", isOverwrite);
@@ -238,53 +242,15 @@ public class Config {
     return names;
   }
 
+  // 把内置数据解压到共享目录，path 为空时解压全部
   public boolean copyFileOrDir(String path, boolean overwrite) {
-    try {
-      final String assetPath = new File(RIME, path).getPath();
-      final String[] assets = assetManager.list(assetPath);
-      if (assets.length == 0) {
-        // Files
-        copyFile(path, overwrite);
-      } else {
-        // Dirs
-        final File dir = new File(sharedDataDir, path);
-        if (!dir.exists()) // noinspection ResultOfMethodCallIgnored
-        dir.mkdir();
-        for (String asset : assets) {
-          final String subPath = new File(path, asset).getPath();
-          copyFileOrDir(subPath, overwrite);
-        }
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-      return false;
-    }
-    return true;
-  }
-
-  private void copyFile(String fileName, boolean overwrite) {
-    if (fileName == null) return;
-
-    final String targetFileName = new File(sharedDataDir, fileName).getPath();
-    if (new File(targetFileName).exists() && !overwrite) return;
-    final String sourceFileName = new File(RIME, fileName).getPath();
-    try (InputStream in = assetManager.open(sourceFileName);
-        final FileOutputStream out = new FileOutputStream(targetFileName)) {
-      final byte[] buffer = new byte[1024];
-      int read;
-      while ((read = in.read(buffer)) != -1) {
-        out.write(buffer, 0, read);
-      }
-      out.flush();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+    return assetExtractor.extract(path, overwrite);
   }
 
   private void deployTheme() {
     if (userDataDir.contentEquals(sharedDataDir)) return; // 相同文件夾不部署主題
     final String[] configs = getThemeKeys(false);
-    for (String config : configs) Rime.deploy_config_file(config, "config_version");
+    for (String config : configs) Rime.deployConfigFile(config);
   }
 
   public void setTheme(String theme) {
@@ -307,22 +273,19 @@ public class Config {
   // 应用音效包
   private void applySoundPackage(File file, String name) {
     // copy soundpackage yaml file from sound folder to build folder
-    try {
-      InputStream in = new FileInputStream(file);
-      OutputStream out =
-          new FileOutputStream(
-              userDataDir + File.separator + "build" + File.separator + name + ".sound.yaml");
-
-      byte[] buffer = new byte[1024];
-      int len;
-      while ((len = in.read(buffer)) > 0) {
-        out.write(buffer, 0, len);
+    final File target = new File(userDataDir + File.separator + "build", name + ".sound.yaml");
+    // 音效包未修改时不重复复制
+    if (target.length() != file.length() || target.lastModified() < file.lastModified()) {
+      try (FileChannel in = new FileInputStream(file).getChannel();
+          FileChannel out = new FileOutputStream(target).getChannel()) {
+        final long size = in.size();
+        long position = 0;
+        while (position < size) position += in.transferTo(position, size - position, out);
+        Timber.i("applySoundPackage = " + name);
+      } catch (IOException e) {
+        e.printStackTrace();
       }
-      in.close();
-      out.close();
-      Timber.i("applySoundPackage = " + name);
-    } catch (Exception e) {
-      e.printStackTrace();
+      Rime.clearConfigCache(name + ".sound");
     }
     Sound.get(name);
     currentSound = name;
@@ -359,17 +322,17 @@ public class Config {
         if (f.exists()) {
           Timber.d("init() deploy_config_file skip");
         } else {
-          Rime.deploy_config_file(file_name, "config_version");
+          Rime.deployConfigFile(file_name);
         }
       } else {
-        Rime.deploy_config_file(file_name, "config_version");
+        Rime.deployConfigFile(file_name);
       }
       Timber.d("init() deploy_config_file done");
 
-      Map<String, Map<String, ?>> globalThemeConfig = Rime.config_get_map(themeName, "");
+      Map<String, Map<String, ?>> globalThemeConfig = Rime.getConfigMap(themeName, "");
       if (globalThemeConfig == null) {
         themeName = defaultName;
-        globalThemeConfig = Rime.config_get_map(themeName, "");
+        globalThemeConfig = Rime.getConfigMap(themeName, "");
       }
       Timber.d("init() load_map done");
       mDefaultStyle = (Map<?, ?>) globalThemeConfig.get("style");
@@ -397,65 +360,27 @@ public class Config {
   public void reset() {
     Timber.d("reset()");
     schema_id = Rime.getSchemaId();
-    if (schema_id != null) mStyle = (Map<?, ?>) Rime.schema_get_value(schema_id, "style");
+    if (schema_id != null) mStyle = (Map<?, ?>) Rime.getSchemaValue(schema_id, "style");
+    theme = Theme.compile(mDefaultStyle, mStyle, Key.presetKeys).withColorsOf(theme);
+    // preset_keys 與方案名可能已變化，按鍵事件需重新解析
+    Event.clearCache();
   }
 
-  @Nullable
-  private Object _getValue(String k1, String k2) {
-    Map<?, ?> m;
-    if (mStyle != null && mStyle.containsKey(k1)) {
-      m = (Map<?, ?>) mStyle.get(k1);
-      if (m != null && m.containsKey(k2)) return m.get(k2);
-    }
-    if (mDefaultStyle != null && mDefaultStyle.containsKey(k1)) {
-      m = (Map<?, ?>) mDefaultStyle.get(k1);
-      if (m != null && m.containsKey(k2)) return m.get(k2);
-    }
-    return null;
-  }
-
-  private Object _getValue(String k1, String k2, Object defaultValue) {
-    Map<?, ?> m;
-    if (mStyle != null && mStyle.containsKey(k1)) {
-      m = (Map<?, ?>) mStyle.get(k1);
-      if (m != null && m.containsKey(k2)) return m.get(k2);
-    }
-    if (mDefaultStyle != null && mDefaultStyle.containsKey(k1)) {
-      m = (Map<?, ?>) mDefaultStyle.get(k1);
-      if (m != null && m.containsKey(k2)) return m.get(k2);
-    }
-    return defaultValue;
-  }
-
-  @Nullable
-  private Object _getValue(String k1) {
-    if (mStyle != null && mStyle.containsKey(k1)) return mStyle.get(k1);
-    if (mDefaultStyle != null && mDefaultStyle.containsKey(k1)) return mDefaultStyle.get(k1);
-    return null;
-  }
-
-  private Object _getValue(String k1, Object defaultValue) {
-    if (mStyle != null && mStyle.containsKey(k1)) return mStyle.get(k1);
-    if (mDefaultStyle != null && mDefaultStyle.containsKey(k1)) return mDefaultStyle.get(k1);
-    return defaultValue;
+  /** 当前编译后的主题，样式或配色变化时替换为新实例 */
+  public Theme getThemeModel() {
+    return theme;
   }
 
   public Object getValue(@NonNull String s) {
-    final String[] ss = s.split("/");
-    if (ss.length == 1) return _getValue(ss[0]);
-    else if (ss.length == 2) return _getValue(ss[0], ss[1]);
-    return null;
+    return theme.getValue(s);
   }
 
   public Object getValue(@NonNull String s, Object defaultValue) {
-    final String[] ss = s.split("/");
-    if (ss.length == 1) return _getValue(ss[0], defaultValue);
-    else if (ss.length == 2) return _getValue(ss[0], ss[1], defaultValue);
-    return null;
+    return theme.getValue(s, defaultValue);
   }
 
   public boolean hasKey(String s) {
-    return getValue(s) != null;
+    return theme.hasKey(s);
   }
 
   private String getKeyboardName(@NonNull String name) {
@@ -464,7 +389,7 @@ public class Config {
       else {
         if (schema_id.contains("_")) name = schema_id.split("_")[0];
         if (!presetKeyboards.containsKey(name)) { // 匹配“_”前的方案名
-          Object o = Rime.schema_get_value(schema_id, "speller/alphabet");
+          Object o = Rime.getSchemaValue(schema_id, "speller/alphabet");
           name = "qwerty"; // 26
           if (o != null) {
             final String alphabet = o.toString();
@@ -532,8 +457,10 @@ public class Config {
   }
 
   public void destroy() {
-    if (mDefaultStyle != null) mDefaultStyle.clear();
-    if (mStyle != null) mStyle.clear();
+    // 样式来自共享的配置快照，只释放引用
+    mDefaultStyle = null;
+    mStyle = null;
+    theme = Theme.EMPTY;
     self = null;
   }
 
@@ -585,7 +512,8 @@ public class Config {
     return keyboardPadding;
   }
 
-  private static int getPixel(Float f) {
+  /** 样式中的尺寸换算为像素，未定义时为 0 */
+  public static int getPixel(@Nullable Float f) {
     if (f == null) return 0;
     return (int)
         TypedValue.applyDimension(
@@ -602,6 +530,11 @@ public class Config {
     return getPixel(v);
   }
 
+  /** 样式中的尺寸换算为像素，未定义时返回 defaultValue */
+  public static int getPixel(@Nullable Float f, int defaultValue) {
+    return f == null ? defaultValue : getPixel(f);
+  }
+
   public static Integer getPixel(Map<?, ?> m, String k, Object s) {
     Object o = getValue(m, k, s);
     if (o == null) return null;
@@ -634,16 +567,7 @@ public class Config {
 
   // API 2.0
   public Integer getColor(String key) {
-    Object o;
-    if (curcentColors.containsKey(key)) {
-      o = curcentColors.get(key);
-      if (o instanceof Integer) return (Integer) o;
-    }
-    o = getColorObject(key);
-    if (o == null) {
-      o = ((Map<?, ?>) Objects.requireNonNull(presetColorSchemes.get(colorID))).get(key);
-    }
-    return parseColor(o);
+    return theme.getColor(key);
   }
 
   // API 2.0
@@ -685,9 +609,7 @@ public class Config {
   }
 
   public float getFloat(String key) {
-    final Object o = getValue(key);
-    if (o == null) return 0f;
-    return Float.parseFloat(o.toString());
+    return theme.getFloat(key, 0f);
   }
 
   public float getLiquidFloat(String key) {
@@ -700,9 +622,7 @@ public class Config {
   }
 
   public float getFloat(String key, float defaultValue) {
-    final Object o = getValue(key, defaultValue);
-    if (o == null) return defaultValue;
-    return Float.parseFloat(o.toString());
+    return theme.getFloat(key, defaultValue);
   }
 
   public int getInt(String key) {
@@ -712,24 +632,13 @@ public class Config {
   }
 
   public String getString(String key) {
-    final Object o = getValue(key);
-    if (o == null) return "";
-    return o.toString();
+    return theme.getString(key);
   }
 
   //  获取当前配色方案的key的value，或者从fallback获取值。
   @Nullable
   private Object getColorObject(String key) {
-    final Map<?, ?> map = (Map<?, ?>) presetColorSchemes.get(colorID);
-    if (map == null) return null;
-    appPrefs.getLooks().setSelectedColor(colorID);
-    Object o = map.get(key);
-    String fallbackKey = key;
-    while (o == null && fallbackColors.containsKey(fallbackKey)) {
-      fallbackKey = (String) fallbackColors.get(fallbackKey);
-      o = map.get(fallbackKey);
-    }
-    return o;
+    return theme.getColorObject(key);
   }
 
   /**
@@ -810,8 +719,7 @@ public class Config {
   }
 
   public Integer getCurrentColor(String key) {
-    Object o = getColorObject(key);
-    return parseColor(o);
+    return theme.getColor(key);
   }
 
   public String[] getColorKeys() {
@@ -859,12 +767,7 @@ public class Config {
   }
 
   public Typeface getFont(String key) {
-    final String name = getString(key);
-    if (name != null) {
-      final File f = new File(DataManager.getDataDir("fonts"), name);
-      if (f.exists()) return Typeface.createFromFile(f);
-    }
-    return Typeface.DEFAULT;
+    return theme.getFont(key);
   }
 
   //  返回drawable。参数可以是颜色或者图片。如果参数缺失，返回null
@@ -873,8 +776,8 @@ public class Config {
     String name = o.toString();
     Integer color = parseColor(o);
     if (color == null) {
-      if (curcentColors.containsKey(name)) {
-        o = curcentColors.get(name);
+      if (theme.hasColorValue(name)) {
+        o = theme.getColorValue(name);
         color = parseColor(o);
       }
     }
@@ -901,23 +804,13 @@ public class Config {
       }
 
       if (!f.exists()) {
-        if (curcentColors.containsKey(name)) {
-          o = curcentColors.get(name);
+        if (theme.hasColorValue(name)) {
+          o = theme.getColorValue(name);
           if (o instanceof String) f = new File((String) o);
         }
       }
 
-      if (f.exists()) {
-        name = f.getPath();
-        if (name.contains(".9.png")) {
-          final Bitmap bitmap = BitmapFactory.decodeFile(name);
-          final byte[] chunk = bitmap.getNinePatchChunk();
-          // 如果 .9.png 没有经过第一步，那么 chunk 就是 null, 只能按照普通方式加载
-          if (NinePatch.isNinePatchChunk(chunk))
-            return new NinePatchDrawable(bitmap, chunk, new Rect(), null);
-        }
-        return Drawable.createFromPath(name);
-      }
+      if (f.exists()) return DrawableCache.get(f.getPath());
     }
     return null;
   }
@@ -972,13 +865,12 @@ public class Config {
 
   // 获取当前色彩 Config 2.0
   public Integer getCurrentColor_(String key) {
-    Object o = curcentColors.get(key);
-    return (Integer) o;
+    return theme.getColor(key);
   }
 
   // 获取当前背景图路径 Config 2.0
   public String getCurrentImage(String key) {
-    Object o = curcentColors.get(key);
+    Object o = theme.getColorValue(key);
     if (o instanceof String) return (String) o;
     return "";
   }
@@ -987,7 +879,7 @@ public class Config {
   //  参数可以是颜色或者图片。如果参数缺失，返回null
   public Drawable getDrawable_(String key) {
     if (key == null) return null;
-    Object o = curcentColors.get(key);
+    Object o = theme.getColorValue(key);
     if (o instanceof Integer) {
       Integer color = (Integer) o;
       final GradientDrawable gd = new GradientDrawable();
@@ -1016,7 +908,7 @@ public class Config {
     }
 
     GradientDrawable gd = new GradientDrawable();
-    Object o = curcentColors.get(key);
+    Object o = theme.getColorValue(key);
     if (!(o instanceof Integer)) return null;
     gd.setColor((int) o);
 
@@ -1024,7 +916,7 @@ public class Config {
 
     if (borderColorKey != null && borderKey != null) {
       int border = getPixel(borderKey);
-      Object borderColor = curcentColors.get(borderColorKey);
+      Object borderColor = theme.getColorValue(borderColorKey);
       if (borderColor instanceof Integer && border > 0) {
         gd.setStroke(border, getCurrentColor_(borderColorKey));
       }
@@ -1047,96 +939,57 @@ public class Config {
   public Drawable getDrawableBitmap_(String key) {
     if (key == null) return null;
 
-    Object o = curcentColors.get(key);
-    if (o instanceof String) {
-      String path = (String) o;
-      if (path.contains(".9.png")) {
-        final Bitmap bitmap = BitmapFactory.decodeFile(path);
-        final byte[] chunk = bitmap.getNinePatchChunk();
-        if (NinePatch.isNinePatchChunk(chunk))
-          return new NinePatchDrawable(bitmap, chunk, new Rect(), null);
-      }
-      return Drawable.createFromPath(path);
-    }
+    Object o = theme.getColorValue(key);
+    if (o instanceof String) return DrawableCache.get((String) o);
     return null;
   }
 
-  // 遍历当前配色方案的值、fallback的值，从而获得当前方案的全部配色Map
-  private final Map<String, Object> curcentColors = new HashMap<>();
   private String backgroundFolder;
   // 初始化当前配色 Config 2.0
   public void initCurrentColors() {
-    curcentColors.clear();
     colorID = getColorSchemeName();
-    backgroundFolder = getString("background_folder");
     Timber.d(
         "initCurrentColors() colorID=%s themeName=%s schema_id=%s", colorID, themeName, schema_id);
-    final Map<?, ?> map = (Map<?, ?>) presetColorSchemes.get(colorID);
-    if (map == null) {
-      Timber.i("no colorID %s", colorID);
-      return;
-    }
-    appPrefs.getLooks().setSelectedColor(colorID);
-
-    for (Map.Entry<?, ?> entry : map.entrySet()) {
-      Object value = getColorRealValue(entry.getValue());
-      if (value != null) curcentColors.put(entry.getKey().toString(), value);
-    }
-
-    for (Map.Entry<?, ?> entry : fallbackColors.entrySet()) {
-      String key = entry.getKey().toString();
-      if (!curcentColors.containsKey(key)) {
-        Object o = map.get(key);
-        String fallbackKey = key;
-        List<String> fallbackKeys = new ArrayList<>();
-        while (o == null && fallbackColors.containsKey(fallbackKey)) {
-          fallbackKey = (String) fallbackColors.get(fallbackKey);
-          o = map.get(fallbackKey);
-          fallbackKeys.add(fallbackKey);
-          // 避免死循环
-          if (fallbackKeys.size() > 40) break;
-        }
-        if (o != null) {
-          Object value = getColorRealValue(o);
-          if (value != null) {
-            curcentColors.put(key, value);
-            for (String k : fallbackKeys) {
-              curcentColors.put(k, value);
-            }
-          }
-        }
-      }
-    }
+    compileColors();
   }
 
   // 当切换暗黑模式时，刷新键盘配色方案
   public void initCurrentColors(boolean darkMode) {
-    curcentColors.clear();
     colorID = getColorSchemeName(darkMode);
-    backgroundFolder = getString("background_folder");
     Timber.d(
         "initCurrentColors() colorID=%s themeName=%s schema_id=%s darkMode=%s",
         colorID, themeName, schema_id, darkMode);
+    compileColors();
+  }
+
+  // 遍历当前配色方案的值、fallback的值，一次性解析出当前方案的全部配色
+  private void compileColors() {
+    final Map<String, Object> values = new HashMap<>();
+    final Map<String, Object> objects = new HashMap<>();
+    final Map<String, Integer> colors = new HashMap<>();
+    backgroundFolder = getString("background_folder");
     final Map<?, ?> map = (Map<?, ?>) presetColorSchemes.get(colorID);
     if (map == null) {
       Timber.i("no colorID %s", colorID);
+      theme = theme.withColors(values, objects, colors);
       return;
     }
     appPrefs.getLooks().setSelectedColor(colorID);
+    final Map<?, ?> fallback = fallbackColors != null ? fallbackColors : new HashMap<>();
 
     for (Map.Entry<?, ?> entry : map.entrySet()) {
       Object value = getColorRealValue(entry.getValue());
-      if (value != null) curcentColors.put(entry.getKey().toString(), value);
+      if (value != null) values.put(entry.getKey().toString(), value);
     }
 
-    for (Map.Entry<?, ?> entry : fallbackColors.entrySet()) {
+    for (Map.Entry<?, ?> entry : fallback.entrySet()) {
       String key = entry.getKey().toString();
-      if (!curcentColors.containsKey(key)) {
+      if (!values.containsKey(key)) {
         Object o = map.get(key);
         String fallbackKey = key;
         List<String> fallbackKeys = new ArrayList<>();
-        while (o == null && fallbackColors.containsKey(fallbackKey)) {
-          fallbackKey = (String) fallbackColors.get(fallbackKey);
+        while (o == null && fallback.containsKey(fallbackKey)) {
+          fallbackKey = (String) fallback.get(fallbackKey);
           o = map.get(fallbackKey);
           fallbackKeys.add(fallbackKey);
           // 避免死循环
@@ -1145,14 +998,40 @@ public class Config {
         if (o != null) {
           Object value = getColorRealValue(o);
           if (value != null) {
-            curcentColors.put(key, value);
+            values.put(key, value);
             for (String k : fallbackKeys) {
-              curcentColors.put(k, value);
+              values.put(k, value);
             }
           }
         }
       }
     }
+
+    // 原始值与色彩，供 getColor() 等直接读取
+    final List<String> keys = new ArrayList<>();
+    for (Object k : map.keySet()) keys.add(k.toString());
+    for (Object k : fallback.keySet()) keys.add(k.toString());
+    for (String key : keys) {
+      if (objects.containsKey(key)) continue;
+      Object o = map.get(key);
+      String fallbackKey = key;
+      int depth = 0;
+      while (o == null && fallback.containsKey(fallbackKey) && depth++ <= 40) {
+        fallbackKey = (String) fallback.get(fallbackKey);
+        o = map.get(fallbackKey);
+      }
+      if (o == null) continue;
+      objects.put(key, o);
+      final Object value = values.get(key);
+      final Integer color = value instanceof Integer ? (Integer) value : parseColor(o);
+      if (color != null) colors.put(key, color);
+    }
+    theme = theme.withColors(values, objects, colors);
+
+    // 在后台解码配色方案用到的背景图，绘制键盘时直接取缓存
+    final Set<String> images = new HashSet<>();
+    for (Object value : values.values()) if (value instanceof String) images.add((String) value);
+    DrawableCache.prefetch(images);
   }
 
   // 获取参数的真实value，Config 2.0
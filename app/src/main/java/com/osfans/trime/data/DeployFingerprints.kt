@@ -0,0 +1,100 @@
+package com.osfans.trime.data
+
+import timber.log.Timber
+import java.io.File
+
+/**
+ * Fingerprints of the sources that a deploy compiles, stored next to the build directory.
+ *
+ * Every file under the shared and user data directories is recorded by size and modification
+ * time, subdirectories included, so Lua scripts, phrase and essay texts and OpenCC configs are
+ * seen as well as the YAML sources. Files that librime writes itself, such as the build output,
+ * user dictionaries and `user.yaml`, are left out. Comparing against the fingerprints of the
+ * last deploy tells which sources actually changed.
+ */
+object DeployFingerprints {
+    private const val FILE_NAME = "trime_sources.txt"
+
+    internal data class Fingerprint(val size: Long, val lastModified: Long)
+
+    /** Directories written by librime or holding Trime's own resources. */
+    private val IGNORED_DIRS = setOf("build", "sync", "fonts", "backgrounds")
+
+    /** Files written by librime at run time. */
+    private val IGNORED_FILES = setOf("user.yaml", "installation.yaml")
+
+    /** Sources keyed by `shared/<path>` or `user/<path>`, the path relative to the data directory. */
+    class Snapshot internal constructor(
+        internal val entries: Map<String, Fingerprint>,
+    ) {
+        /** Relative paths whose fingerprint differs from [previous], in either data directory. */
+        fun changedSince(previous: Snapshot): Set<String> =
+            (entries.keys + previous.entries.keys)
+                .filter { entries[it] != previous.entries[it] }
+                .mapTo(hashSetOf()) { it.substringAfter('/') }
+    }
+
+    private val prefs get() = AppPrefs.defaultInstance()
+
+    private val store: File
+        get() = File(prefs.conf.userDataDir, "build" + File.separator + FILE_NAME)
+
+    /** Scans the current sources. */
+    @JvmStatic
+    fun scan(): Snapshot {
+        val entries = hashMapOf<String, Fingerprint>()
+        val shared = File(prefs.conf.sharedDataDir)
+        val user = File(prefs.conf.userDataDir)
+        scanDir(entries, "shared", shared)
+        if (user.absoluteFile != shared.absoluteFile) scanDir(entries, "user", user)
+        return Snapshot(entries)
+    }
+
+    private fun scanDir(entries: MutableMap<String, Fingerprint>, prefix: String, dir: File) {
+        if (!dir.isDirectory) return
+        dir.walkTopDown()
+            .onEnter { it == dir || !isIgnored(it) }
+            .filter { it.isFile && !isIgnored(it) }
+            .forEach {
+                val path = it.relativeTo(dir).invariantSeparatorsPath
+                entries["$prefix/$path"] = Fingerprint(it.length(), it.lastModified())
+            }
+    }
+
+    private fun isIgnored(file: File): Boolean {
+        val name = file.name
+        if (name.startsWith(".") || name.endsWith(".userdb")) return true
+        return if (file.isDirectory) name in IGNORED_DIRS else name in IGNORED_FILES
+    }
+
+    /** Loads the fingerprints of the last deploy, or null if there was none. */
+    @JvmStatic
+    fun load(): Snapshot? {
+        val file = store
+        if (!file.isFile) return null
+        return runCatching {
+            val entries = hashMapOf<String, Fingerprint>()
+            file.forEachLine { line ->
+                val fields = line.split('\t')
+                if (fields.size == 3) {
+                    entries[fields[0]] = Fingerprint(fields[1].toLong(), fields[2].toLong())
+                }
+            }
+            Snapshot(entries)
+        }.onFailure { Timber.w(it, "Failed to read deploy fingerprints") }.getOrNull()
+    }
+
+    /** Records [snapshot] as the sources of the current build. */
+    @JvmStatic
+    fun save(snapshot: Snapshot) {
+        val file = store
+        runCatching {
+            file.parentFile?.mkdirs()
+            file.bufferedWriter().use { out ->
+                snapshot.entries.forEach { (name, fingerprint) ->
+                    out.write("$name\t${fingerprint.size}\t${fingerprint.lastModified}\n")
+                }
+            }
+        }.onFailure { Timber.w(it, "Failed to write deploy fingerprints") }
+    }
+}
@@ -0,0 +1,132 @@
+package com.osfans.trime.data;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.NinePatch;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.NinePatchDrawable;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import timber.log.Timber;
+
+/**
+ * 主题背景图缓存
+ *
+ * <p>按文件路径、修改时间与目标尺寸缓存解码后的位图，总量按字节数限制。
+ * 普通图片解码时按目标尺寸降采样；.9.png 的拉伸区域以原图像素描述，按原尺寸解码。
+ * 每次取用都新建 Drawable，位图共享，调用方修改透明度等状态互不影响。
+ */
+public final class DrawableCache {
+  // 最多占用进程可用内存的 1/8
+  private static final int MAX_SIZE =
+      (int) Math.min(Runtime.getRuntime().maxMemory() / 8, 64 << 20);
+
+  private static final LruCache<String, Image> cache =
+      new LruCache<String, Image>(MAX_SIZE) {
+        @Override
+        protected int sizeOf(String key, Image value) {
+          return value.bitmap.getAllocationByteCount();
+        }
+      };
+
+  private static final ExecutorService decoder =
+      Executors.newSingleThreadExecutor(r -> new Thread(r, "DrawableDecoder"));
+
+  private DrawableCache() {}
+
+  private static final class Image {
+    final Bitmap bitmap;
+    final byte[] chunk;
+
+    Image(Bitmap bitmap, byte[] chunk) {
+      this.bitmap = bitmap;
+      this.chunk = chunk;
+    }
+  }
+
+  /** 返回图片的 Drawable，图片不超过屏幕尺寸；文件不存在或无法解码时返回 null */
+  @Nullable
+  public static Drawable get(@NonNull String path) {
+    final DisplayMetrics metrics = Resources.getSystem().getDisplayMetrics();
+    return get(path, metrics.widthPixels, metrics.heightPixels);
+  }
+
+  /** 返回图片的 Drawable，位图降采样到不小于 width x height 的最小尺寸 */
+  @Nullable
+  public static Drawable get(@NonNull String path, int width, int height) {
+    final Image image = load(path, width, height);
+    if (image == null) return null;
+    if (image.chunk != null)
+      return new NinePatchDrawable(image.bitmap, image.chunk, new Rect(), null);
+    return new BitmapDrawable(null, image.bitmap);
+  }
+
+  /** 在后台线程中预先解码，主题加载时调用，避免绘制键盘时读盘 */
+  public static void prefetch(@NonNull Collection<String> paths) {
+    final DisplayMetrics metrics = Resources.getSystem().getDisplayMetrics();
+    final int width = metrics.widthPixels, height = metrics.heightPixels;
+    for (String path : paths) decoder.execute(() -> load(path, width, height));
+  }
+
+  /** 内存不足时释放缓存，正在显示的 Drawable 仍持有各自的位图 */
+  public static void trimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) cache.evictAll();
+    else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) cache.trimToSize(MAX_SIZE / 2);
+  }
+
+  @Nullable
+  private static Image load(@NonNull String path, int width, int height) {
+    final File file = new File(path);
+    final long lastModified = file.lastModified();
+    if (lastModified == 0) return null; // 文件不存在
+    final boolean ninePatch = path.contains(".9.png");
+    // .9.png 不降采样，与目标尺寸无关
+    final String key = path + "@" + lastModified + (ninePatch ? "" : ":" + width + "x" + height);
+    Image image = cache.get(key);
+    if (image != null) return image;
+
+    image = ninePatch ? decodeNinePatch(path) : decode(path, width, height);
+    if (image != null) cache.put(key, image);
+    return image;
+  }
+
+  @Nullable
+  private static Image decodeNinePatch(@NonNull String path) {
+    final Bitmap bitmap = BitmapFactory.decodeFile(path);
+    if (bitmap == null) return null;
+    final byte[] chunk = bitmap.getNinePatchChunk();
+    // 如果 .9.png 没有经过第一步，那么 chunk 就是 null, 只能按照普通方式加载
+    return new Image(bitmap, NinePatch.isNinePatchChunk(chunk) ? chunk : null);
+  }
+
+  @Nullable
+  private static Image decode(@NonNull String path, int width, int height) {
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(path, options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      Timber.w("Failed to decode %s", path);
+      return null;
+    }
+    int sampleSize = 1;
+    if (width > 0 && height > 0) {
+      while (options.outWidth / (sampleSize * 2) >= width
+          && options.outHeight / (sampleSize * 2) >= height) sampleSize *= 2;
+    }
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSize;
+    final Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+    if (bitmap == null) return null;
+    return new Image(bitmap, null);
+  }
+}
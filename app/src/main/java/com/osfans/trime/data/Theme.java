@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2015-present, osfans
+ * waxaca@163.com https://github.com/osfans
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.osfans.trime.data;
+
+import android.graphics.Typeface;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import timber.log.Timber;
+
+/**
+ * 编译后的主题。加载主题、切换方案或配色时由 {@link Config} 生成一次，之后只读。
+ *
+ * <p>样式按 "k1" 与 "k1/k2" 扁平化，方案样式覆盖主题样式；数值预先解析为 float；字体预先加载；配色沿 fallback_colors 解析完毕。
+ */
+public final class Theme {
+  static final Theme EMPTY =
+      new Theme(
+          Collections.emptyMap(),
+          Collections.emptyMap(),
+          Collections.emptyMap(),
+          Collections.emptyMap(),
+          Collections.emptyMap(),
+          null,
+          Collections.emptyMap());
+
+  // 扁平化的样式
+  private final Map<String, Object> style;
+  // 样式中可解析为数值的项
+  private final Map<String, Float> floats;
+  // 当前配色：色彩为 Integer，背景图为路径
+  private final Map<String, Object> colorValues;
+  // 当前配色中的原始值，已沿 fallback 解析
+  private final Map<String, Object> colorObjects;
+  // 当前配色中可解析为色彩的项
+  private final Map<String, Integer> colors;
+  // 只读副本，不随 Key.presetKeys 变化
+  private final Map<String, Map<String, String>> presetKeys;
+  // 样式中 *_font 项对应的字体，编译时加载，样式相同的主题共用
+  private final Map<String, Typeface> fonts;
+
+  // 绘制按键与候选时常用的尺寸（样式原值，未定义时为 null）与色彩，构造时取出，免去逐项查表
+  private final Float keyTextSize, keyLongTextSize, symbolTextSize;
+  private final Float candidateTextSize, commentTextSize, candidatePadding, candidateSpacing;
+  private final Integer keyTextColor, hilitedKeyTextColor, onKeyTextColor, offKeyTextColor;
+  private final Integer hilitedOnKeyTextColor, hilitedOffKeyTextColor;
+  private final Integer keySymbolColor, hilitedKeySymbolColor, shadowColor;
+  private final Integer candidateTextColor, hilitedCandidateTextColor;
+  private final Integer commentTextColor, hilitedCommentTextColor;
+
+  // 字体文件在进程内只加载一次，按路径记录修改时间、大小与字体
+  private static final Map<String, FontFile> typefaces = new ConcurrentHashMap<>();
+
+  private static final class FontFile {
+    final long lastModified;
+    final long length;
+    final Typeface typeface;
+
+    FontFile(long lastModified, long length, Typeface typeface) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.typeface = typeface;
+    }
+  }
+
+  private Theme(
+      Map<String, Object> style,
+      Map<String, Float> floats,
+      Map<String, Object> colorValues,
+      Map<String, Object> colorObjects,
+      Map<String, Integer> colors,
+      Map<String, Map<String, String>> presetKeys,
+      Map<String, Typeface> fonts) {
+    this.style = style;
+    this.floats = floats;
+    this.colorValues = colorValues;
+    this.colorObjects = colorObjects;
+    this.colors = colors;
+    this.presetKeys = presetKeys;
+    this.fonts = fonts;
+
+    keyTextSize = floats.get("key_text_size");
+    keyLongTextSize = floats.get("key_long_text_size");
+    symbolTextSize = floats.get("symbol_text_size");
+    candidateTextSize = floats.get("candidate_text_size");
+    commentTextSize = floats.get("comment_text_size");
+    candidatePadding = floats.get("candidate_padding");
+    candidateSpacing = floats.get("candidate_spacing");
+
+    keyTextColor = colors.get("key_text_color");
+    hilitedKeyTextColor = colors.get("hilited_key_text_color");
+    onKeyTextColor = colors.get("on_key_text_color");
+    offKeyTextColor = colors.get("off_key_text_color");
+    hilitedOnKeyTextColor = colors.get("hilited_on_key_text_color");
+    hilitedOffKeyTextColor = colors.get("hilited_off_key_text_color");
+    keySymbolColor = colors.get("key_symbol_color");
+    hilitedKeySymbolColor = colors.get("hilited_key_symbol_color");
+    shadowColor = colors.get("shadow_color");
+    candidateTextColor = colors.get("candidate_text_color");
+    hilitedCandidateTextColor = colors.get("hilited_candidate_text_color");
+    commentTextColor = colors.get("comment_text_color");
+    hilitedCommentTextColor = colors.get("hilited_comment_text_color");
+  }
+
+  /** 合并主题样式与方案样式，生成不含配色的主题 */
+  @NonNull
+  static Theme compile(
+      @Nullable Map<?, ?> defaultStyle,
+      @Nullable Map<?, ?> schemaStyle,
+      @Nullable Map<String, Map<String, String>> presetKeys) {
+    final Map<String, Object> style = new HashMap<>();
+    flatten(style, defaultStyle);
+    flatten(style, schemaStyle);
+    final Map<String, Float> floats = new HashMap<>();
+    final Map<String, Typeface> fonts = new HashMap<>();
+    for (Map.Entry<String, Object> entry : style.entrySet()) {
+      final String key = entry.getKey();
+      final Float f = parseFloat(entry.getValue());
+      if (f != null) floats.put(key, f);
+      if (key.endsWith("_font")) {
+        final Typeface tf = loadFont(String.valueOf(entry.getValue()));
+        if (tf != null) fonts.put(key, tf);
+      }
+    }
+    return new Theme(
+        Collections.unmodifiableMap(style),
+        Collections.unmodifiableMap(floats),
+        Collections.emptyMap(),
+        Collections.emptyMap(),
+        Collections.emptyMap(),
+        copyPresetKeys(presetKeys),
+        Collections.unmodifiableMap(fonts));
+  }
+
+  @Nullable
+  private static Map<String, Map<String, String>> copyPresetKeys(
+      @Nullable Map<String, Map<String, String>> presetKeys) {
+    if (presetKeys == null) return null;
+    final Map<String, Map<String, String>> copy = new HashMap<>();
+    for (Map.Entry<String, Map<String, String>> entry : presetKeys.entrySet()) {
+      final Map<String, String> key = entry.getValue();
+      copy.put(
+          entry.getKey(), key == null ? null : Collections.unmodifiableMap(new HashMap<>(key)));
+    }
+    return Collections.unmodifiableMap(copy);
+  }
+
+  /** 沿用样式，替换配色 */
+  @NonNull
+  Theme withColors(
+      @NonNull Map<String, Object> colorValues,
+      @NonNull Map<String, Object> colorObjects,
+      @NonNull Map<String, Integer> colors) {
+    return new Theme(
+        style,
+        floats,
+        Collections.unmodifiableMap(colorValues),
+        Collections.unmodifiableMap(colorObjects),
+        Collections.unmodifiableMap(colors),
+        presetKeys,
+        fonts);
+  }
+
+  /** 沿用另一主题的配色 */
+  @NonNull
+  Theme withColorsOf(@NonNull Theme other) {
+    return new Theme(
+        style,
+        floats,
+        other.colorValues,
+        other.colorObjects,
+        other.colors,
+        presetKeys,
+        fonts);
+  }
+
+  // 与原先按 "/" 逐级查找的规则一致：k1 整体覆盖，k1/k2 逐项覆盖
+  private static void flatten(Map<String, Object> out, @Nullable Map<?, ?> m) {
+    if (m == null) return;
+    for (Map.Entry<?, ?> entry : m.entrySet()) {
+      final String k1 = String.valueOf(entry.getKey());
+      final Object value = entry.getValue();
+      out.put(k1, value);
+      if (value instanceof Map) {
+        for (Map.Entry<?, ?> sub : ((Map<?, ?>) value).entrySet()) {
+          out.put(k1 + "/" + sub.getKey(), sub.getValue());
+        }
+      }
+    }
+  }
+
+  @Nullable
+  private static Float parseFloat(Object o) {
+    if (o instanceof Number) return ((Number) o).floatValue();
+    if (!(o instanceof String)) return null;
+    try {
+      return Float.parseFloat((String) o);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  public boolean hasKey(@NonNull String key) {
+    return style.get(key) != null;
+  }
+
+  @Nullable
+  public Object getValue(@NonNull String key) {
+    return style.get(key);
+  }
+
+  public Object getValue(@NonNull String key, Object defaultValue) {
+    return style.containsKey(key) ? style.get(key) : defaultValue;
+  }
+
+  public float getFloat(@NonNull String key, float defaultValue) {
+    final Float f = floats.get(key);
+    if (f != null) return f;
+    final Object o = style.get(key);
+    if (o == null) return defaultValue;
+    // 无法解析的值保持原先的异常行为
+    return Float.parseFloat(o.toString());
+  }
+
+  @NonNull
+  public String getString(@NonNull String key) {
+    final Object o = style.get(key);
+    return o == null ? "" : o.toString();
+  }
+
+  /** 当前配色中的色彩，未定义或不是色彩时返回 null */
+  @Nullable
+  public Integer getColor(@NonNull String key) {
+    return colors.get(key);
+  }
+
+  /** 当前配色中的色彩或背景图路径 */
+  @Nullable
+  public Object getColorValue(@NonNull String key) {
+    return colorValues.get(key);
+  }
+
+  public boolean hasColorValue(@NonNull String key) {
+    return colorValues.containsKey(key);
+  }
+
+  /** 当前配色中的原始值 */
+  @Nullable
+  public Object getColorObject(@NonNull String key) {
+    return colorObjects.get(key);
+  }
+
+  @Nullable
+  public Map<String, Map<String, String>> getPresetKeys() {
+    return presetKeys;
+  }
+
+  @Nullable
+  public Float getKeyTextSize() {
+    return keyTextSize;
+  }
+
+  @Nullable
+  public Float getKeyLongTextSize() {
+    return keyLongTextSize;
+  }
+
+  @Nullable
+  public Float getSymbolTextSize() {
+    return symbolTextSize;
+  }
+
+  @Nullable
+  public Float getCandidateTextSize() {
+    return candidateTextSize;
+  }
+
+  @Nullable
+  public Float getCommentTextSize() {
+    return commentTextSize;
+  }
+
+  @Nullable
+  public Float getCandidatePadding() {
+    return candidatePadding;
+  }
+
+  @Nullable
+  public Float getCandidateSpacing() {
+    return candidateSpacing;
+  }
+
+  @Nullable
+  public Integer getKeyTextColor() {
+    return keyTextColor;
+  }
+
+  @Nullable
+  public Integer getHilitedKeyTextColor() {
+    return hilitedKeyTextColor;
+  }
+
+  @Nullable
+  public Integer getOnKeyTextColor() {
+    return onKeyTextColor;
+  }
+
+  @Nullable
+  public Integer getOffKeyTextColor() {
+    return offKeyTextColor;
+  }
+
+  @Nullable
+  public Integer getHilitedOnKeyTextColor() {
+    return hilitedOnKeyTextColor;
+  }
+
+  @Nullable
+  public Integer getHilitedOffKeyTextColor() {
+    return hilitedOffKeyTextColor;
+  }
+
+  @Nullable
+  public Integer getKeySymbolColor() {
+    return keySymbolColor;
+  }
+
+  @Nullable
+  public Integer getHilitedKeySymbolColor() {
+    return hilitedKeySymbolColor;
+  }
+
+  @Nullable
+  public Integer getShadowColor() {
+    return shadowColor;
+  }
+
+  @Nullable
+  public Integer getCandidateTextColor() {
+    return candidateTextColor;
+  }
+
+  @Nullable
+  public Integer getHilitedCandidateTextColor() {
+    return hilitedCandidateTextColor;
+  }
+
+  @Nullable
+  public Integer getCommentTextColor() {
+    return commentTextColor;
+  }
+
+  @Nullable
+  public Integer getHilitedCommentTextColor() {
+    return hilitedCommentTextColor;
+  }
+
+  @NonNull
+  public Typeface getFont(@NonNull String key) {
+    final Typeface tf = fonts.get(key);
+    return tf != null ? tf : Typeface.DEFAULT;
+  }
+
+  // fonts 目录中的字体文件，不存在时返回 null
+  @Nullable
+  private static Typeface loadFont(@NonNull String name) {
+    if (name.isEmpty()) return null;
+    final File f = new File(DataManager.getDataDir("fonts"), name);
+    return f.isFile() ? loadTypeface(f) : null;
+  }
+
+  // 文件未变化时沿用已加载的字体，各主题与各视图得到同一实例
+  @NonNull
+  private static Typeface loadTypeface(@NonNull File f) {
+    final String path = f.getPath();
+    final long lastModified = f.lastModified();
+    final long length = f.length();
+    final FontFile cached = typefaces.get(path);
+    if (cached != null && cached.lastModified == lastModified && cached.length == length)
+      return cached.typeface;
+    Typeface tf;
+    try {
+      tf = Typeface.createFromFile(f);
+    } catch (RuntimeException e) {
+      Timber.w(e, "Failed to load font %s", path);
+      tf = Typeface.DEFAULT;
+    }
+    typefaces.put(path, new FontFile(lastModified, length, tf));
+    return tf;
+  }
+}
@@ -4,6 +4,15 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import androidx.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import timber.log.Timber;
 
 public class DbHelper extends SQLiteOpenHelper {
@@ -11,9 +20,122 @@ public class DbHelper extends SQLiteOpenHelper {
   public static final String CREATE_STUDENT =
       "create table if not exists  t_data ("
           + "id integer primary key, text TEXT, html TEXT, type integer, time integer)";
+  public static final String CREATE_TEXT_INDEX =
+      "create index if not exists t_data_text on t_data (text)";
+  public static final String CREATE_TIME_INDEX =
+      "create index if not exists t_data_time on t_data (time)";
 
-  public DbHelper(Context context, String name) {
-    super(context, name, null, 3);
+  private static final Map<String, DbHelper> helpers = new HashMap<>();
+  // 所有數據庫共用一個寫線程
+  private static final ExecutorService writeExecutor =
+      Executors.newSingleThreadExecutor(r -> new Thread(r, "DbWriter"));
+
+  // 寫操作失敗後保留重試的次數
+  private static final int MAX_ATTEMPTS = 3;
+
+  private final Queue<Pending> pendingWrites = new ConcurrentLinkedQueue<>();
+  // 等待重試的寫操作，排在 pendingWrites 之前；只在寫線程中訪問
+  private final List<Pending> retryWrites = new ArrayList<>();
+
+  /** 寫操作，在寫線程的事務中執行 */
+  public interface Writer {
+    void write(@NonNull SQLiteDatabase db);
+  }
+
+  private static final class Pending {
+    final Writer writer;
+    int attempts;
+
+    Pending(Writer writer) {
+      this.writer = writer;
+    }
+  }
+
+  /** 取得數據庫的共享實例，數據庫在進程內保持打開 */
+  public static synchronized DbHelper get(@NonNull Context context, @NonNull String name) {
+    DbHelper helper = helpers.get(name);
+    if (helper == null) {
+      helper = new DbHelper(context.getApplicationContext(), name);
+      helpers.put(name, helper);
+    }
+    return helper;
+  }
+
+  private DbHelper(Context context, String name) {
+    super(context, name, null, 4);
+    setWriteAheadLoggingEnabled(true);
+  }
+
+  /**
+   * 加入後臺寫隊列，同時排隊的寫操作合併在一個事務中提交
+   *
+   * <p>讀取不等待寫隊列：數據庫開啓了 WAL，讀到的是已提交的數據，尚在隊列中的寫操作稍後可見
+   */
+  public void enqueue(@NonNull Writer writer) {
+    pendingWrites.add(new Pending(writer));
+    writeExecutor.execute(this::flush);
+  }
+
+  // 只在寫線程中執行
+  private void flush() {
+    final List<Pending> batch = new ArrayList<>(retryWrites);
+    retryWrites.clear();
+    Pending pending;
+    while ((pending = pendingWrites.poll()) != null) batch.add(pending);
+    if (batch.isEmpty()) return;
+    final SQLiteDatabase db;
+    try {
+      db = getWritableDatabase();
+    } catch (Exception e) {
+      Timber.e(e, "flush() failed to open database");
+      for (int i = 0; i < batch.size(); i++) {
+        if (retry(batch, i)) return;
+      }
+      return;
+    }
+    if (write(db, batch)) return;
+    // 整批已回滾，逐條按原順序重寫，以免一條失敗連累之前的寫操作；
+    // 失敗時停下，其後的寫操作不越過它先提交，以保持先增後刪之類的順序
+    for (int i = 0; i < batch.size(); i++) {
+      if (!write(db, Collections.singletonList(batch.get(i))) && retry(batch, i)) return;
+    }
+  }
+
+  private static boolean write(@NonNull SQLiteDatabase db, @NonNull List<Pending> batch) {
+    db.beginTransaction();
+    try {
+      for (Pending p : batch) p.writer.write(db);
+      db.setTransactionSuccessful();
+      return true;
+    } catch (Exception e) {
+      Timber.e(e, "flush() failed");
+      return false;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * 第 from 條寫操作失敗：連同其後未寫的按原順序排到隊首重試，返回 true；
+   * 多次失敗後放棄這一條，返回 false，由調用者繼續寫其後的
+   */
+  private boolean retry(@NonNull List<Pending> batch, int from) {
+    final Pending failed = batch.get(from);
+    if (++failed.attempts >= MAX_ATTEMPTS) {
+      Timber.e("drop a write after %d attempts", failed.attempts);
+      return false;
+    }
+    retryWrites.addAll(batch.subList(from, batch.size()));
+    writeExecutor.execute(this::flush);
+    return true;
+  }
+
+  /** 只保留最新的 limit 條記錄，limit 不大於 0 時不限制 */
+  public static void prune(@NonNull SQLiteDatabase db, int limit) {
+    if (limit <= 0) return;
+    db.execSQL(
+        "delete from t_data where id not in (select id from t_data order by time desc limit ?)",
+        new Object[] {limit});
   }
 
   @Override
@@ -26,6 +148,8 @@ public class DbHelper extends SQLiteOpenHelper {
   public void onCreate(@NonNull SQLiteDatabase db) {
     Timber.i("create db");
     db.execSQL(CREATE_STUDENT);
+    db.execSQL(CREATE_TEXT_INDEX);
+    db.execSQL(CREATE_TIME_INDEX);
   }
 
   @Override
@@ -38,5 +162,10 @@ public class DbHelper extends SQLiteOpenHelper {
       Timber.i("onUpgrade() create db");
       db.execSQL(CREATE_STUDENT);
     }
+    if (oldVersion < 4) {
+      Timber.i("onUpgrade() create indices");
+      db.execSQL(CREATE_TEXT_INDEX);
+      db.execSQL(CREATE_TIME_INDEX);
+    }
   }
 }
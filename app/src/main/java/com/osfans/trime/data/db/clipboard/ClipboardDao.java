@@ -13,7 +13,7 @@ import timber.log.Timber;
 
 public class ClipboardDao {
 
-  private DbHelper helper;
+  private final DbHelper helper;
   private static ClipboardDao self;
 
   public static ClipboardDao get() {
@@ -21,45 +21,48 @@ public class ClipboardDao {
     return self;
   }
 
-  public ClipboardDao() {}
+  public ClipboardDao() {
+    helper = DbHelper.get(Trime.getService(), "clipboard.db");
+  }
 
   /** 插入新记录 * */
   public void insert(@NonNull DbBean clipboardBean) {
-    helper = new DbHelper(Trime.getService(), "clipboard.db");
-    SQLiteDatabase db = helper.getWritableDatabase();
-    db.execSQL(
-        "insert into t_data(text,html,type,time) values(?,?,?,?)",
-        new Object[] {
-          clipboardBean.getText(),
-          clipboardBean.getHtml(),
-          clipboardBean.getType(),
-          clipboardBean.getTime()
-        });
-    db.close();
+    helper.enqueue(
+        db ->
+            db.execSQL(
+                "insert into t_data(text,html,type,time) values(?,?,?,?)",
+                new Object[] {
+                  clipboardBean.getText(),
+                  clipboardBean.getHtml(),
+                  clipboardBean.getType(),
+                  clipboardBean.getTime()
+                }));
   }
 
-  /** 删除文字相同的剪贴板记录，插入新记录 * */
-  public void add(@NonNull DbBean clipboardBean) {
-    helper = new DbHelper(Trime.getService(), "clipboard.db");
-    SQLiteDatabase db = helper.getWritableDatabase();
-    db.delete("t_data", "text=?", new String[] {clipboardBean.getText()});
-    db.execSQL(
-        "insert into t_data(text,html,type,time) values(?,?,?,?)",
-        new Object[] {
-          clipboardBean.getText(),
-          clipboardBean.getHtml(),
-          clipboardBean.getType(),
-          clipboardBean.getTime()
+  /**
+   * 删除文字相同的剪贴板记录，插入新记录
+   *
+   * @param limit 最多保留的记录数，不大于 0 时不限制
+   */
+  public void add(@NonNull DbBean clipboardBean, int limit) {
+    helper.enqueue(
+        db -> {
+          db.delete("t_data", "text=?", new String[] {clipboardBean.getText()});
+          db.execSQL(
+              "insert into t_data(text,html,type,time) values(?,?,?,?)",
+              new Object[] {
+                clipboardBean.getText(),
+                clipboardBean.getHtml(),
+                clipboardBean.getType(),
+                clipboardBean.getTime()
+              });
+          DbHelper.prune(db, limit);
         });
-    db.close();
   }
 
   /** 删除记录 * */
   public void delete(@NonNull String str) {
-    helper = new DbHelper(Trime.getService(), "clipboard.db");
-    SQLiteDatabase db = helper.getWritableDatabase();
-    db.delete("t_data", "text=?", new String[] {str});
-    db.close();
+    helper.enqueue(db -> db.delete("t_data", "text=?", new String[] {str}));
   }
 
   public List<SimpleKeyBean> getAllSimpleBean(int size) {
@@ -70,9 +73,7 @@ public class ClipboardDao {
     String sql = "select text , html , type , time from t_data ORDER BY time DESC";
     if (size > 0) sql = sql + " limit 0," + size;
 
-    helper = new DbHelper(Trime.getService(), "clipboard.db");
-
-    SQLiteDatabase db = helper.getWritableDatabase();
+    SQLiteDatabase db = helper.getReadableDatabase();
     Cursor cursor = db.rawQuery(sql, null);
     if (cursor != null) {
       while (cursor.moveToNext()) {
@@ -81,7 +82,6 @@ public class ClipboardDao {
       }
       cursor.close();
     }
-    db.close();
     Timber.d("getAllSimpleBean() size=%s limit=%s", list.size(), size);
     return list;
   }
@@ -2,7 +2,6 @@ package com.osfans.trime.data.db.draft;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
 import androidx.annotation.NonNull;
 import com.osfans.trime.data.db.DbBean;
 import com.osfans.trime.data.db.DbHelper;
@@ -14,7 +13,7 @@ import timber.log.Timber;
 
 public class DraftDao {
 
-  private SQLiteOpenHelper helper;
+  private final DbHelper helper;
   private static DraftDao self;
 
   public static DraftDao get() {
@@ -22,27 +21,33 @@ public class DraftDao {
     return self;
   }
 
-  public DraftDao() {}
+  public DraftDao() {
+    helper = DbHelper.get(Trime.getService(), "draft.db");
+  }
 
   /** 插入新记录 * */
   public void insert(@NonNull DbBean bean) {
-    helper = new DbHelper(Trime.getService(), "draft.db");
-    SQLiteDatabase db = helper.getWritableDatabase();
-    db.execSQL(
-        "insert into t_data(text,html,type,time) values(?,?,?,?)",
-        new Object[] {bean.getText(), bean.getHtml(), bean.getType(), bean.getTime()});
-    db.close();
+    helper.enqueue(
+        db ->
+            db.execSQL(
+                "insert into t_data(text,html,type,time) values(?,?,?,?)",
+                new Object[] {bean.getText(), bean.getHtml(), bean.getType(), bean.getTime()}));
   }
 
-  /** 删除文字相同的记录，插入新记录 * */
-  public void add(@NonNull DbBean bean) {
-    helper = new DbHelper(Trime.getService(), "draft.db");
-    SQLiteDatabase db = helper.getWritableDatabase();
-    db.delete("t_data", "text=?", new String[] {bean.getText()});
-    db.execSQL(
-        "insert into t_data(text,html,type,time) values(?,?,?,?)",
-        new Object[] {bean.getText(), bean.getHtml(), bean.getType(), bean.getTime()});
-    db.close();
+  /**
+   * 删除文字相同的记录，插入新记录
+   *
+   * @param limit 最多保留的记录数，不大于 0 时不限制
+   */
+  public void add(@NonNull DbBean bean, int limit) {
+    helper.enqueue(
+        db -> {
+          db.delete("t_data", "text=?", new String[] {bean.getText()});
+          db.execSQL(
+              "insert into t_data(text,html,type,time) values(?,?,?,?)",
+              new Object[] {bean.getText(), bean.getHtml(), bean.getType(), bean.getTime()});
+          DbHelper.prune(db, limit);
+        });
   }
 
   public List<SimpleKeyBean> getAllSimpleBean(int size) {
@@ -53,9 +58,7 @@ public class DraftDao {
     String sql = "select text , html , type , time from t_data ORDER BY time DESC";
     if (size > 0) sql = sql + " limit 0," + size;
 
-    helper = new DbHelper(Trime.getService(), "draft.db");
-
-    SQLiteDatabase db = helper.getWritableDatabase();
+    SQLiteDatabase db = helper.getReadableDatabase();
     Cursor cursor = db.rawQuery(sql, null);
     if (cursor != null) {
       while (cursor.moveToNext()) {
@@ -64,7 +67,6 @@ public class DraftDao {
       }
       cursor.close();
     }
-    db.close();
     Timber.d("DraftDao.getAllSimpleBean() size=%s limit=%s", list.size(), size);
     return list;
   }
@@ -1,5 +1,6 @@
 package com.osfans.trime.data.opencc
 
+import com.osfans.trime.core.Rime
 import com.osfans.trime.data.DataManager
 import com.osfans.trime.data.opencc.dict.Dictionary
 import com.osfans.trime.data.opencc.dict.OpenCCDictionary
@@ -39,22 +40,27 @@ object OpenCCDictManager {
             )
         )
         Timber.d("Converted $raw to $new")
+        Rime.clearOpenccCache()
         return new
     }
 
     /**
-     * Convert internal text dict to opencc format
+     * Convert internal text dict to opencc format, skipping those whose converted file is
+     * newer than the text
      */
     @JvmStatic
     fun internalDeploy() {
         for (d in dictionaries()) {
             if (d is TextDictionary) {
+                val converted = d.file.resolveSibling(d.name + ".${Dictionary.Type.OPENCC.ext}")
+                if (converted.length() > 0 && converted.lastModified() >= d.file.lastModified()) continue
                 val result: OpenCCDictionary
                 measureTimeMillis {
                     result = d.toOpenCCDictionary()
                 }.also { Timber.d("Took $it to convert to $result") }
             }
         }
+        Rime.clearOpenccCache()
     }
 
     fun importFromInputStream(stream: InputStream, name: String): OpenCCDictionary {
@@ -7,7 +7,6 @@ import android.view.InputDevice
 import android.view.KeyCharacterMap
 import android.view.KeyEvent
 import android.view.inputmethod.EditorInfo
-import android.view.inputmethod.ExtractedTextRequest
 import android.view.inputmethod.InputConnection
 import com.osfans.trime.core.Rime
 import com.osfans.trime.data.AppPrefs
@@ -36,13 +35,22 @@ class EditorInstance(private val ims: InputMethodService) {
     var lastCommittedText: CharSequence = ""
     var draftCache: String = ""
 
+    /** The last [DRAFT_MAX_LENGTH] characters committed during the current input session. */
+    private val sessionText = StringBuilder()
+
+    companion object {
+        /** Characters read on each side of the cursor when capturing a draft. */
+        private const val DRAFT_MAX_LENGTH = 1024
+    }
+
     fun commitText(text: CharSequence, dispatchToRime: Boolean = true): Boolean {
         val ic = inputConnection ?: return false
         ic.commitText(text, 1)
         lastCommittedText = text
         // Fix pressing Delete key will clear the input box issue on BlackBerry
         ic.clearMetaKeyStates(KeyEvent.getModifierMetaStateMask())
-        cacheDraft()
+        sessionText.append(text)
+        if (sessionText.length > DRAFT_MAX_LENGTH) sessionText.delete(0, sessionText.length - DRAFT_MAX_LENGTH)
         return true
     }
 
@@ -54,16 +62,28 @@ class EditorInstance(private val ims: InputMethodService) {
     }
 
     /**
-     * Commits the text got from Rime.
+     * Commits the text got from Rime. The commit is taken on the engine thread and committed on
+     * the main thread after the key results queued before it; [onCommitted] then receives whether
+     * there was any.
      */
-    fun commitRimeText(): Boolean {
-        val ret = Rime.getCommit()
-        if (ret) {
-            commitText(Rime.getCommitText())
+    @JvmOverloads
+    fun commitRimeText(onCommitted: ((Boolean) -> Unit)? = null) {
+        Rime.takeCommitAsync { commit ->
+            val committed = commitRimeText(commit)
+            onCommitted?.invoke(committed)
+        }
+    }
+
+    /**
+     * Commits the [commit] text already taken from Rime on the engine thread.
+     */
+    fun commitRimeText(commit: String?): Boolean {
+        if (commit != null) {
+            commitText(commit)
         }
         Timber.i("\t<TrimeInput>\tcommitRimeText()\tupdateComposing")
         (ims as Trime).updateComposing()
-        return ret
+        return commit != null
     }
 
     fun updateComposingText() {
@@ -79,18 +99,49 @@ class EditorInstance(private val ims: InputMethodService) {
         }
     }
 
-    fun cacheDraft(): String {
-        if (prefs.other.draftLimit.equals("0") || inputConnection == null)
+    /** Starts a new input session, in which nothing has been committed yet. */
+    fun startDraft() {
+        sessionText.setLength(0)
+    }
+
+    /**
+     * Keeps the text committed so far as the draft without reading the editor, e.g. before
+     * Enter sends it away.
+     */
+    fun markDraft() {
+        if (prefs.other.draftLimit.equals("0") || sessionText.isBlank()) return
+        draftCache = sessionText.toString()
+    }
+
+    /**
+     * Captures the draft when the input view finishes. The editor is read only if something was
+     * committed during the session, and the committed text is kept when it can't be read.
+     */
+    fun flushDraft() {
+        if (sessionText.isEmpty()) return
+        if (cacheDraft().isEmpty()) markDraft()
+        sessionText.setLength(0)
+    }
+
+    /**
+     * Reads the text around the cursor, at most [DRAFT_MAX_LENGTH] characters on each side,
+     * instead of extracting the whole document.
+     */
+    private fun cacheDraft(): String {
+        val ic = inputConnection
+        if (prefs.other.draftLimit.equals("0") || ic == null)
             return ""
-        val et = inputConnection!!.getExtractedText(ExtractedTextRequest(), 0)
-        if (et == null) {
-            Timber.e("cacheDraft() et==null")
+        val before = ic.getTextBeforeCursor(DRAFT_MAX_LENGTH, 0)
+        if (before == null) {
+            Timber.e("cacheDraft() before==null")
             return ""
         }
-        val cs = et.text ?: return ""
-        if (cs.isNullOrBlank())
+        val selected = ic.getSelectedText(0) ?: ""
+        val after = ic.getTextAfterCursor(DRAFT_MAX_LENGTH, 0) ?: ""
+        val cs = "$before$selected$after"
+        if (cs.isBlank())
             return ""
-        draftCache = cs as String
+        draftCache = cs
         Timber.d("cacheDraft() $draftCache")
         return draftCache
     }
@@ -62,6 +62,7 @@ import com.osfans.trime.R;
 import com.osfans.trime.core.Rime;
 import com.osfans.trime.data.AppPrefs;
 import com.osfans.trime.data.Config;
+import com.osfans.trime.data.DrawableCache;
 import com.osfans.trime.data.db.clipboard.ClipboardDao;
 import com.osfans.trime.data.db.draft.DraftDao;
 import com.osfans.trime.databinding.CompositionRootBinding;
@@ -300,6 +301,8 @@ public class Trime extends LifecycleInputMethodService {
       Timber.i("onWindowHidden...");
     }
     isWindowShown = false;
+    // 輸入面板隱藏時保存切換過的選項
+    Rime.saveOptions();
 
     if (getPrefs().getConf().getSyncBackgroundEnabled()) {
       final Message msg = new Message();
@@ -425,6 +428,8 @@ public class Trime extends LifecycleInputMethodService {
   }
 
   private SymbolKeyboardType symbolKeyboardType = SymbolKeyboardType.NO_KEY;
+  // 液體鍵盤候選上次刷新時的版本號
+  private int liquidCandidatesVersion = -1;
 
   public void selectLiquidKeyboard(final int tabIndex) {
     final LinearLayout symbolInputView =
@@ -442,6 +447,7 @@ public class Trime extends LifecycleInputMethodService {
         liquidKeyboard.setLand(orientation == Configuration.ORIENTATION_LANDSCAPE);
         liquidKeyboard.calcPadding(mainInputView.getWidth());
         symbolKeyboardType = liquidKeyboard.select(tabIndex);
+        liquidCandidatesVersion = -1;
         tabView.updateTabWidth();
         if (inputRootBinding != null) {
           mTabRoot.setBackground(mCandidateRoot.getBackground());
@@ -660,6 +666,14 @@ public class Trime extends LifecycleInputMethodService {
     super.onConfigurationChanged(newConfig);
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    // 釋放暫未使用的鍵盤，再次切換時重新構建
+    if (keyboardSwitcher != null) keyboardSwitcher.trimMemory(level);
+    DrawableCache.trimMemory(level);
+  }
+
   @Override
   public void onUpdateCursorAnchorInfo(CursorAnchorInfo cursorAnchorInfo) {
     if (!isWinFixed()) {
@@ -771,6 +785,7 @@ public class Trime extends LifecycleInputMethodService {
   public void setShowComment(boolean show_comment) {
     // if (mCandidateRoot != null) mCandidate.setShowComment(show_comment);
     mComposition.setShowComment(show_comment);
+    if (liquidKeyboard != null) liquidKeyboard.setShowComment(show_comment);
   }
 
   @Override
@@ -855,15 +870,17 @@ public class Trime extends LifecycleInputMethodService {
           Timber.i("EditorInfo: normal -> private, IME_FLAG_NO_PERSONALIZED_LEARNING");
         } else {
           normalTextEditor = true;
-          activeEditorInstance.cacheDraft();
-          addDraft();
+          activeEditorInstance.startDraft();
         }
     }
   }
 
   @Override
   public void onFinishInputView(boolean finishingInput) {
-    if (normalTextEditor) addDraft();
+    if (normalTextEditor) {
+      activeEditorInstance.flushDraft();
+      addDraft();
+    }
     super.onFinishInputView(finishingInput);
     // Dismiss any pop-ups when the input-view is being finished and hidden.
     mainKeyboardView.closing();
@@ -925,7 +942,6 @@ public class Trime extends LifecycleInputMethodService {
 
   public boolean onRimeKey(int[] event) {
     updateRimeOption();
-    // todo 改为异步处理按键事件、刷新UI
     final boolean ret = Rime.onKey(event);
     activeEditorInstance.commitRimeText();
     return ret;
@@ -1054,7 +1070,52 @@ public class Trime extends LifecycleInputMethodService {
       Timber.d(
           "\t<TrimeInput>\thandleKey()\trimeProcess, keycode=%d, metaState=%d",
           keyEventCode, metaState);
-    } else if (hookKeyboard(keyEventCode, metaState)) {
+      return true;
+    }
+    if (handleUnprocessedKey(keyEventCode, metaState)) return true;
+    textInputManager.setNeedSendUpRimeKey(true);
+    Timber.d(
+        "\t<TrimeInput>\thandleKey()\treturn FALSE, keycode=%d, metaState=%d",
+        keyEventCode, metaState);
+    return false;
+  }
+
+  /**
+   * 异步处理软键盘按键：按键在 Rime 引擎线程中按序处理，不阻塞触摸事件；上屏和刷新候选在主线程中按序进行
+   *
+   * @param onUnhandled Rime 和编辑操作都未处理按键时，在主线程中调用
+   */
+  public void handleKey(int keyEventCode, int metaState, @NonNull Runnable onUnhandled) {
+    handleKey(Event.getRimeEvent(keyEventCode, metaState), keyEventCode, metaState, onUnhandled);
+  }
+
+  /**
+   * 同 {@link #handleKey(int, int, Runnable)}，使用预先算好的 Rime 按键
+   *
+   * @param rimeEvent {@link Event#getRimeEvent() Rime按鍵}
+   */
+  public void handleKey(
+      @NonNull int[] rimeEvent, int keyEventCode, int metaState, @NonNull Runnable onUnhandled) {
+    updateRimeOption();
+    Rime.onKeyAsync(
+        rimeEvent,
+        // 在引擎线程中记录，保证随后排队的释放按键能看到正确的状态
+        (processed, commit) -> textInputManager.setNeedSendUpRimeKey(processed),
+        (processed, commit) -> {
+          activeEditorInstance.commitRimeText(commit);
+          if (processed) {
+            Timber.d(
+                "\t<TrimeInput>\thandleKey()\trimeProcess, keycode=%d, metaState=%d",
+                keyEventCode, metaState);
+          } else if (!handleUnprocessedKey(keyEventCode, metaState)) {
+            onUnhandled.run();
+          }
+        });
+  }
+
+  // 处理 Rime 未消费的按键
+  private boolean handleUnprocessedKey(int keyEventCode, int metaState) {
+    if (hookKeyboard(keyEventCode, metaState)) {
       Timber.d("\t<TrimeInput>\thandleKey()\thookKeyboard, keycode=%d", keyEventCode);
     } else if (performEnter(keyEventCode) || handleBack(keyEventCode)) {
       // 处理返回键（隐藏软键盘）和回车键（换行）
@@ -1064,10 +1125,6 @@ public class Trime extends LifecycleInputMethodService {
       // 打开系统默认应用
       Timber.d("\t<TrimeInput>\thandleKey()\topenCategory keycode=%d", keyEventCode);
     } else {
-      textInputManager.setNeedSendUpRimeKey(true);
-      Timber.d(
-          "\t<TrimeInput>\thandleKey()\treturn FALSE, keycode=%d, metaState=%d",
-          keyEventCode, metaState);
       return false;
     }
     return true;
@@ -1226,7 +1283,11 @@ public class Trime extends LifecycleInputMethodService {
 
     if (symbolKeyboardType == SymbolKeyboardType.CANDIDATE) {
       if (isComposing()) {
-        liquidKeyboard.updateCandidates();
+        final int version = Rime.getCandidatesVersion();
+        if (version != liquidCandidatesVersion) {
+          liquidCandidatesVersion = version;
+          liquidKeyboard.updateCandidates();
+        }
       } else {
         selectLiquidKeyboard(-1);
       }
@@ -1297,7 +1358,7 @@ public class Trime extends LifecycleInputMethodService {
               launchSettings();
               dialog.dismiss();
             });
-    if (Rime.get_current_schema().contentEquals(".default")) {
+    if (Rime.isEmpty()) {
       dialogBuilder.setMessage(R.string.no_schemas);
     } else {
       dialogBuilder
@@ -1327,7 +1388,7 @@ public class Trime extends LifecycleInputMethodService {
    */
   private boolean performEnter(int keyCode) { // 回車
     if (keyCode == KeyEvent.KEYCODE_ENTER) {
-      activeEditorInstance.cacheDraft();
+      activeEditorInstance.markDraft();
       if (textInputManager.getPerformEnterAsLineBreak()) {
         commitText("\n");
       } else {
@@ -1,6 +1,5 @@
 package com.osfans.trime.ime.enums
 
-import android.text.TextUtils
 import android.view.KeyEvent
 
 enum class Keycode {
@@ -59,11 +58,21 @@ enum class Keycode {
 
     companion object {
 
+        // values() copies the array on every call, keep one for lookups by ordinal
+        private val keycodes = values()
+
+        /** name→code: key names plus the symbols in [reverseMap], e.g. `0` and `!`. */
         private val convertMap: HashMap<String, Keycode> = hashMapOf()
         private val reverseMap: HashMap<Keycode, String> = hashMapOf()
 
+        /** code→name, with the leading underscore of names like `_0` removed. */
+        private val keyNames = Array(keycodes.size) { keycodes[it].name.removePrefix("_") }
+
+        /** code→symbol, empty for codes without a symbol label. */
+        private lateinit var symbolLabels: Array<String>
+
         init {
-            for (type in Keycode.values()) {
+            for (type in keycodes) {
                 convertMap[type.toString()] = type
             }
 
@@ -100,6 +109,7 @@ enum class Keycode {
             reverseMap.forEach {
                 convertMap[it.value] = it.key
             }
+            symbolLabels = Array(keycodes.size) { reverseMap[keycodes[it]] ?: "" }
         }
 
         fun isStdKey(keycode: Int): Boolean {
@@ -107,24 +117,34 @@ enum class Keycode {
         }
 
         fun hasSymbolLabel(keycode: Int): Boolean {
-            return keycode >= A.ordinal && keycode < values().size
+            return keycode >= A.ordinal && keycode < keycodes.size
         }
 
         fun getSymbolLabell(keycode: Keycode): String {
-            return reverseMap[keycode] ?: ""
+            return symbolLabels[keycode.ordinal]
         }
 
-        private val masks = hashMapOf(
-            "Shift" to KeyEvent.META_SHIFT_ON,
-            "Control" to KeyEvent.META_CTRL_ON,
-            "Alt" to KeyEvent.META_ALT_ON,
-            "Meta" to KeyEvent.META_META_ON,
-            "SYM" to KeyEvent.META_SYM_ON,
+        private val maskNames = arrayOf("Shift", "Control", "Alt", "Meta", "SYM")
+        private val maskValues = intArrayOf(
+            KeyEvent.META_SHIFT_ON,
+            KeyEvent.META_CTRL_ON,
+            KeyEvent.META_ALT_ON,
+            KeyEvent.META_META_ON,
+            KeyEvent.META_SYM_ON,
         )
 
         fun addMask(mask: Int, s: String): Int {
-            val m = masks[s] ?: 0
-            return m or mask
+            return maskOf(s, 0, s.length) or mask
+        }
+
+        /** Returns the meta state named by `s[start, end)`, or 0 if it is not a modifier. */
+        private fun maskOf(s: String, start: Int, end: Int): Int {
+            val length = end - start
+            for (i in maskNames.indices) {
+                val name = maskNames[i]
+                if (name.length == length && s.regionMatches(start, name, 0, length)) return maskValues[i]
+            }
+            return 0
         }
 
         @JvmStatic
@@ -135,15 +155,18 @@ enum class Keycode {
 
         @JvmStatic
         fun valueOf(ordinal: Int): Keycode {
-            if (ordinal < 0 || ordinal >= values().size) {
+            if (ordinal < 0 || ordinal >= keycodes.size) {
                 return VoidSymbol
             }
-            return values()[ordinal]
+            return keycodes[ordinal]
         }
 
         @JvmStatic
         fun keyNameOf(ordinal: Int): String {
-            return valueOf(ordinal).toString().replaceFirst("^_".toRegex(), "")
+            if (ordinal < 0 || ordinal >= keyNames.size) {
+                return keyNames[VoidSymbol.ordinal]
+            }
+            return keyNames[ordinal]
         }
 
         @JvmStatic
@@ -151,21 +174,19 @@ enum class Keycode {
             return fromString(name).ordinal
         }
 
+        /** Parses `Mod+Mod+key` into `[keycode, meta state]`; every segment before the last `+` is a modifier. */
         @JvmStatic
         fun parseSend(s: String): IntArray {
             val sends = IntArray(2)
-            if (TextUtils.isEmpty(s)) return sends
-            val codes: String
-            if (s.contains("+")) {
-                val ss = s.split("+").toTypedArray()
-                val n = ss.size
-                for (i in 0 until n - 1) if (masks.containsKey(ss[i])) sends[1] =
-                    addMask(sends[1], ss[i])
-                codes = ss[n - 1]
-            } else {
-                codes = s
+            if (s.isEmpty()) return sends
+            var start = 0
+            var plus = s.indexOf('+')
+            while (plus >= 0) {
+                sends[1] = sends[1] or maskOf(s, start, plus)
+                start = plus + 1
+                plus = s.indexOf('+', start)
             }
-            sends[0] = fromString(codes).ordinal
+            sends[0] = fromString(if (start == 0) s else s.substring(start)).ordinal
             return sends
         }
     }
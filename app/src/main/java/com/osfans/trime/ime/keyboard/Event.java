@@ -18,24 +18,27 @@
 
 package com.osfans.trime.ime.keyboard;
 
-import android.text.TextUtils;
 import android.view.KeyEvent;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import com.osfans.trime.core.Rime;
-import com.osfans.trime.data.Config;
 import com.osfans.trime.ime.enums.Keycode;
 import com.osfans.trime.util.ConfigGetter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import timber.log.Timber;
 
-/** {@link Key 按鍵}的各種事件（單擊、長按、滑動等） */
+/**
+ * {@link Key 按鍵}的各種事件（單擊、長按、滑動等）
+ *
+ * <p>事件與鍵盤無關，構造後不再修改，通過 {@link #obtain(String)} 按源字符串復用
+ */
 public class Event {
   // private String TAG = "Event";
-  private final Keyboard mKeyboard;
   private int code;
   private int mask = 0;
   private String text;
@@ -52,13 +55,17 @@ public class Event {
   private boolean functional;
   private boolean repeatable;
   private boolean sticky;
+  // 送往 Rime 的鍵碼和修飾鍵，首次使用時計算
+  private int[] rimeEvent;
+
+  // 按源字符串緩存已解析的事件，主題、方案變化時清空
+  private static final Map<String, Event> cache = new ConcurrentHashMap<>();
 
   // {send|key}
   private static final Pattern sendPattern = Pattern.compile("\\{[^\\{\\}]+\\}");
   private static final Pattern labelPattern = Pattern.compile("\\{[^\\{\\}]+?\\}");
 
-  public Event(Keyboard keyboard, @NonNull String s) {
-    mKeyboard = keyboard;
+  private Event(@NonNull String s) {
     if (sendPattern.matcher(s).matches()) {
       label = s.substring(1, s.length() - 1);
       int[] sends = Keycode.parseSend(label); // send
@@ -69,8 +76,7 @@ public class Event {
       s = label; // key
       label = null;
     }
-    if (Key.presetKeys.containsKey(s)) {
-      // todo 把presetKeys缓存为presetKeyEvents，减少重新载入
+    if (Key.presetKeys != null && Key.presetKeys.containsKey(s)) {
       Map<String, ?> presetKey = Key.presetKeys.get(s);
       command = ConfigGetter.getString(presetKey, "command", "");
       option = ConfigGetter.getString(presetKey, "option", "");
@@ -81,14 +87,15 @@ public class Event {
       shiftLock = ConfigGetter.getString(presetKey, "shift_lock", "");
       commit = ConfigGetter.getString(presetKey, "commit", "");
       String send = ConfigGetter.getString(presetKey, "send", "");
-      if (TextUtils.isEmpty(send) && !TextUtils.isEmpty(command))
+      if (isEmpty(send) && !isEmpty(command))
         send = "function"; // command默認發function
       int[] sends = Keycode.parseSend(send);
       code = sends[0];
       mask = sends[1];
       parseLabel();
-      text = Config.getString(presetKey, "text");
-      if (code < 0 && TextUtils.isEmpty(text)) text = s;
+      final Object t = presetKey.get("text");
+      text = t == null ? "" : t.toString();
+      if (code < 0 && isEmpty(text)) text = s;
       if (presetKey.containsKey("states")) states = (List<?>) presetKey.get("states");
       sticky = ConfigGetter.getBoolean(presetKey, "sticky", false);
       repeatable = ConfigGetter.getBoolean(presetKey, "repeatable", false);
@@ -102,8 +109,21 @@ public class Event {
     }
   }
 
-  public Event(String s) {
-    this(null, s);
+  /** 獲取源字符串對應的事件，同一字符串只解析一次 */
+  @NonNull
+  public static Event obtain(@NonNull String s) {
+    Event event = cache.get(s);
+    if (event == null) {
+      event = new Event(s);
+      final Event previous = cache.putIfAbsent(s, event);
+      if (previous != null) event = previous;
+    }
+    return event;
+  }
+
+  /** preset_keys 或方案變化後調用，事件需要重新解析 */
+  public static void clearCache() {
+    cache.clear();
   }
 
   public int getCode() {
@@ -164,42 +184,42 @@ public class Event {
     return result;
   }
 
-  // TODO 进一步解耦，在Event中去除mKeyboard
+  // 大小寫取決於當前鍵盤的狀態，由調用者傳入
   @NonNull
-  private String adjustCase(String s) {
-    if (TextUtils.isEmpty(s)) return "";
-    if (s.length() == 1 && mKeyboard != null && mKeyboard.needUpCase())
+  private static String adjustCase(String s, Keyboard keyboard) {
+    if (isEmpty(s)) return "";
+    if (s.length() == 1 && keyboard != null && keyboard.needUpCase())
       s = s.toUpperCase(Locale.getDefault());
     else if (s.length() == 1
-        && mKeyboard != null
+        && keyboard != null
         && !Rime.isAsciiMode()
-        && mKeyboard.isLabelUppercase()) s = s.toUpperCase(Locale.getDefault());
+        && keyboard.isLabelUppercase()) s = s.toUpperCase(Locale.getDefault());
     return s;
   }
 
-  public String getLabel() {
-    if (!TextUtils.isEmpty(toggle)) return (String) states.get(Rime.getOption(toggle) ? 1 : 0);
-    return adjustCase(label);
+  public String getLabel(Keyboard keyboard) {
+    if (!isEmpty(toggle)) return (String) states.get(Rime.getOption(toggle) ? 1 : 0);
+    return adjustCase(label, keyboard);
   }
 
-  public String getText() {
+  public String getText(Keyboard keyboard) {
     String s = "";
-    if (!TextUtils.isEmpty(text)) s = text;
-    else if (mKeyboard != null
-        && mKeyboard.needUpCase()
+    if (!isEmpty(text)) s = text;
+    else if (keyboard != null
+        && keyboard.needUpCase()
         && mask == 0
         && code >= KeyEvent.KEYCODE_A
         && code <= KeyEvent.KEYCODE_Z) s = label;
-    return adjustCase(s);
+    return adjustCase(s, keyboard);
   }
 
-  public String getPreviewText() {
-    if (!TextUtils.isEmpty(preview)) return preview;
-    return getLabel();
+  public String getPreviewText(Keyboard keyboard) {
+    if (!isEmpty(preview)) return preview;
+    return getLabel(keyboard);
   }
 
   public String getToggle() {
-    if (!TextUtils.isEmpty(toggle)) return toggle;
+    if (!isEmpty(toggle)) return toggle;
     return "ascii_mode";
   }
 
@@ -208,7 +228,7 @@ public class Event {
   }
 
   private void parseLabel() {
-    if (!TextUtils.isEmpty(label)) return;
+    if (!isEmpty(label)) return;
     int c = code;
     if (c == KeyEvent.KEYCODE_SPACE) {
       label = Rime.getSchemaName();
@@ -235,7 +255,7 @@ public class Event {
 
   public static int getClickCode(String s) {
     int keyCode = -1;
-    if (TextUtils.isEmpty(s)) { // 空鍵
+    if (isEmpty(s)) { // 空鍵
       keyCode = 0;
     } else if (Keycode.fromString(s) != Keycode.VoidSymbol) { // 字母數字
       keyCode = Keycode.keyCodeOf(s);
@@ -245,13 +265,33 @@ public class Event {
     return keyCode;
   }
 
+  // 與 TextUtils.isEmpty 相同，解析事件不調用框架方法，主機上的基準測試與設備走同樣的分支
+  private static boolean isEmpty(@Nullable CharSequence s) {
+    return s == null || s.length() == 0;
+  }
+
   public static boolean hasModifier(int mask, int modifier) {
     return (mask & modifier) > 0;
   }
 
   // KeyboardEvent 从软键盘的按键keycode（可能含有mask）和mask，分离出rimekeycode和mask构成的数组
   public static int[] getRimeEvent(int code, int mask) {
-    int i = RimeKeycode.get().getRimeCode(code);
+    final int i = RimeKeycode.get().getRimeCode(code);
+    final int m = getRimeMask(mask);
+    Timber.d("<Event> getRimeEvent()\tcode=%d, mask=%d\toutput key=%d, meta=%d", code, mask, i, m);
+    return new int[] {i, m};
+  }
+
+  /** 本事件送往 Rime 的 {鍵碼, 修飾鍵}，只計算一次，調用者不可修改 */
+  @NonNull
+  public int[] getRimeEvent() {
+    if (rimeEvent == null) {
+      rimeEvent = new int[] {RimeKeycode.get().getRimeCode(code), getRimeMask(mask)};
+    }
+    return rimeEvent;
+  }
+
+  private static int getRimeMask(int mask) {
     int m = 0;
     if (hasModifier(mask, KeyEvent.META_SHIFT_ON)) m |= Rime.META_SHIFT_ON;
     if (hasModifier(mask, KeyEvent.META_CTRL_ON)) m |= Rime.META_CTRL_ON;
@@ -259,10 +299,7 @@ public class Event {
     if (hasModifier(mask, KeyEvent.META_SYM_ON)) m |= Rime.META_SYM_ON;
     if (hasModifier(mask, KeyEvent.META_META_ON)) m |= Rime.META_META_ON;
     if (mask == Rime.META_RELEASE_ON) m |= Rime.META_RELEASE_ON;
-    Timber.d(
-        "<Event> getRimeEvent()\tcode=%d, mask=%d, name=%s\toutput key=%d, meta=%d",
-        code, mask, Keycode.keyNameOf(code), i, m);
-    return new int[] {i, m};
+    return m;
   }
 
   public boolean isMeta() {
@@ -4,6 +4,10 @@ import android.content.Context
 import android.inputmethodservice.InputMethodService
 import android.media.AudioManager
 import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Process
+import android.os.SystemClock
 import android.os.VibrationEffect
 import android.os.Vibrator
 import android.speech.tts.TextToSpeech
@@ -15,6 +19,10 @@ import kotlin.math.ln
 
 /**
  * Manage the key press effects, such as vibration, sound, speaking and so on.
+ *
+ * Vibration, sound and speech are played on a dedicated worker thread, so touch handling never
+ * waits on the system services. Feedback still queued when a newer one of the same kind arrives is
+ * dropped.
  */
 class InputFeedbackManager(
     private val ims: InputMethodService
@@ -25,6 +33,15 @@ class InputFeedbackManager(
     private var audioManager: AudioManager? = null
     private var tts: TextToSpeech? = null
 
+    private val thread = HandlerThread("InputFeedback", Process.THREAD_PRIORITY_AUDIO).apply { start() }
+    private val handler = Handler(thread.looper)
+
+    /** Runs [task] on the worker, replacing any pending task posted with the same [token]. */
+    private fun post(token: Any, task: Runnable) {
+        handler.removeCallbacksAndMessages(token)
+        handler.postAtTime(task, token, SystemClock.uptimeMillis())
+    }
+
     init {
         try {
             vibrator = ims.getSystemService(Context.VIBRATOR_SERVICE) as? Vibrator
@@ -39,37 +56,41 @@ class InputFeedbackManager(
      * Makes a key press vibration if the user has this feature enabled in the preferences.
      */
     fun keyPressVibrate() {
-        if (prefs.keyboard.vibrationEnabled) {
-            val vibrationDuration = prefs.keyboard.vibrationDuration.toLong()
-            var vibrationAmplitude = prefs.keyboard.vibrationAmplitude
-
-            val hapticsPerformed = if (vibrationDuration < 0) {
-                ims.window?.window?.decorView?.performHapticFeedback(
-                    HapticFeedbackConstants.KEYBOARD_TAP,
-                    HapticFeedbackConstants.FLAG_IGNORE_GLOBAL_SETTING
-                )
-            } else {
-                false
-            }
+        if (!prefs.keyboard.vibrationEnabled) return
+        val vibrationDuration = prefs.keyboard.vibrationDuration.toLong()
+
+        // View haptics belong to the main thread and are cheap
+        val hapticsPerformed = if (vibrationDuration < 0) {
+            ims.window?.window?.decorView?.performHapticFeedback(
+                HapticFeedbackConstants.KEYBOARD_TAP,
+                HapticFeedbackConstants.FLAG_IGNORE_GLOBAL_SETTING
+            )
+        } else {
+            false
+        }
 
-            if (hapticsPerformed == true) {
-                return
-            }
+        if (hapticsPerformed == true) {
+            return
+        }
 
-            if (vibrationAmplitude > 0) {
-                vibrationAmplitude = (vibrationAmplitude / 2.0).toInt().coerceAtLeast(1)
-            }
+        post(VIBRATE) { vibrate(vibrationDuration, prefs.keyboard.vibrationAmplitude) }
+    }
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                vibrator?.vibrate(
-                    VibrationEffect.createOneShot(
-                        vibrationDuration, vibrationAmplitude
-                    )
+    private fun vibrate(vibrationDuration: Long, amplitude: Int) {
+        var vibrationAmplitude = amplitude
+        if (vibrationAmplitude > 0) {
+            vibrationAmplitude = (vibrationAmplitude / 2.0).toInt().coerceAtLeast(1)
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            vibrator?.vibrate(
+                VibrationEffect.createOneShot(
+                    vibrationDuration, vibrationAmplitude
                 )
-            } else {
-                @Suppress("DEPRECATION")
-                vibrator?.vibrate(vibrationDuration)
-            }
+            )
+        } else {
+            @Suppress("DEPRECATION")
+            vibrator?.vibrate(vibrationDuration)
         }
     }
 
@@ -89,6 +110,10 @@ class InputFeedbackManager(
      * Makes a key press sound if the user has this feature enabled in the preferences.
      */
     fun keyPressSound(keyCode: Int? = null) {
+        post(SOUND) { playSound(keyCode) }
+    }
+
+    private fun playSound(keyCode: Int?) {
         if (prefs.keyboard.soundEnabled) {
             val soundVolume = prefs.keyboard.soundVolume
             if (Sound.isEnable())
@@ -101,10 +126,7 @@ class InputFeedbackManager(
                         KeyEvent.KEYCODE_ENTER -> AudioManager.FX_KEYPRESS_RETURN
                         else -> AudioManager.FX_KEYPRESS_STANDARD
                     }
-                    audioManager!!.playSoundEffect(
-                        effect,
-                        (1 - (ln((101.0 - soundVolume)) / ln(101.0))).toFloat()
-                    )
+                    audioManager?.playSoundEffect(effect, soundEffectVolumes[soundVolume.coerceIn(0, 100)])
                 }
             }
         }
@@ -136,19 +158,34 @@ class InputFeedbackManager(
             else -> null
         } ?: return
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            tts?.speak(text, TextToSpeech.QUEUE_FLUSH, null, "TrimeTTS")
-        } else {
-            @Suppress("DEPRECATION")
-            tts?.speak(text, TextToSpeech.QUEUE_FLUSH, null)
+        post(SPEAK) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                tts?.speak(text, TextToSpeech.QUEUE_FLUSH, null, "TrimeTTS")
+            } else {
+                @Suppress("DEPRECATION")
+                tts?.speak(text, TextToSpeech.QUEUE_FLUSH, null)
+            }
         }
     }
 
     fun destroy() {
+        handler.removeCallbacksAndMessages(null)
+        thread.quitSafely()
         vibrator = null
         audioManager = null
         if (tts != null) {
             tts?.stop().also { tts = null }
         }
     }
+
+    companion object {
+        private val VIBRATE = Any()
+        private val SOUND = Any()
+        private val SPEAK = Any()
+
+        /** Sound effect volume for each 0..100 preference, on a logarithmic curve. */
+        private val soundEffectVolumes = FloatArray(101) {
+            (1 - (ln((101.0 - it)) / ln(101.0))).toFloat()
+        }
+    }
 }
@@ -59,7 +59,6 @@ public class Key {
   private static final int EVENT_NUM = KeyEventType.values().length;
   public Event[] events = new Event[EVENT_NUM];
   public int edgeFlags;
-  private static final KeyCharacterMap kcm = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
   private final Keyboard mKeyboard;
 
   private boolean send_bindings = true;
@@ -120,9 +119,9 @@ public class Key {
         String eventType = (KeyEventType.Companion.valueOf(i)).toString().toLowerCase(Locale.ROOT);
         s = ConfigGetter.getString(mk, eventType, "");
         if (!TextUtils.isEmpty(s)) {
-          events[i] = new Event(mKeyboard, s);
+          events[i] = Event.obtain(s);
           if (i < KeyEventType.COMBO.ordinal()) hasComposingKey = true;
-        } else if (i == KeyEventType.CLICK.ordinal()) events[i] = new Event(mKeyboard, "");
+        } else if (i == KeyEventType.CLICK.ordinal()) events[i] = Event.obtain("");
       }
       if (hasComposingKey) mKeyboard.getComposingKeys().add(this);
 
@@ -152,8 +151,13 @@ public class Key {
     return presetKeys;
   }
 
+  // 首次取用時加載，只用到 presetKeys 等靜態成員時不必初始化按鍵字符表
+  private static final class KcmHolder {
+    static final KeyCharacterMap kcm = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
+  }
+
   public static KeyCharacterMap getKcm() {
-    return kcm;
+    return KcmHolder.kcm;
   }
 
   public int getWidth() {
@@ -575,18 +579,18 @@ public class Key {
         && event == getClick()
         && (events[KeyEventType.ASCII.ordinal()] == null && !Rime.isAsciiMode()))
       return label; // 中文狀態顯示標籤
-    return event.getLabel();
+    return event.getLabel(mKeyboard);
   }
 
   public String getPreviewText(int type) {
-    if (type == KeyEventType.CLICK.ordinal()) return getEvent().getPreviewText();
-    return getEvent(type).getPreviewText();
+    if (type == KeyEventType.CLICK.ordinal()) return getEvent().getPreviewText(mKeyboard);
+    return getEvent(type).getPreviewText(mKeyboard);
   }
 
   public String getSymbolLabel() {
     if (labelSymbol.isEmpty()) {
       Event longClick = getLongClick();
-      if (longClick != null) return longClick.getLabel();
+      if (longClick != null) return longClick.getLabel(mKeyboard);
     }
     return labelSymbol;
   }
@@ -177,7 +177,7 @@ public class Keyboard {
       key.setWidth(mDefaultWidth);
       key.setHeight(mDefaultHeight);
       key.setGap(mDefaultHorizontalGap);
-      key.events[0] = new Event(this, String.valueOf(c));
+      key.events[0] = Event.obtain(String.valueOf(c));
       column++;
       x += key.getWidth() + key.getGap();
       mKeys.add(key);
@@ -329,6 +329,32 @@ public class Keyboard {
       mTotalWidth = 0;
     }
 
+    // 全键盘共用的默认值，在循环外解析一次
+    final int defaultKeyTextOffsetX =
+        ConfigGetter.getPixel(
+            keyboardConfig, "key_text_offset_x", config.getFloat("key_text_offset_x"));
+    final int defaultKeyTextOffsetY =
+        ConfigGetter.getPixel(
+            keyboardConfig, "key_text_offset_y", config.getFloat("key_text_offset_y"));
+    final int defaultKeySymbolOffsetX =
+        ConfigGetter.getPixel(
+            keyboardConfig, "key_symbol_offset_x", config.getFloat("key_symbol_offset_x"));
+    final int defaultKeySymbolOffsetY =
+        ConfigGetter.getPixel(
+            keyboardConfig, "key_symbol_offset_y", config.getFloat("key_symbol_offset_y"));
+    final int defaultKeyHintOffsetX =
+        ConfigGetter.getPixel(
+            keyboardConfig, "key_hint_offset_x", config.getFloat("key_hint_offset_x"));
+    final int defaultKeyHintOffsetY =
+        ConfigGetter.getPixel(
+            keyboardConfig, "key_hint_offset_y", config.getFloat("key_hint_offset_y"));
+    final int defaultKeyPressOffsetX =
+        ConfigGetter.getInt(
+            keyboardConfig, "key_press_offset_x", config.getInt("key_press_offset_x"));
+    final int defaultKeyPressOffsetY =
+        ConfigGetter.getInt(
+            keyboardConfig, "key_press_offset_y", config.getInt("key_press_offset_y"));
+
     try {
       for (Map<String, Object> mk : lm) {
         int gap = mDefaultHorizontalGap;
@@ -355,31 +381,6 @@ public class Keyboard {
           continue; // 縮進
         }
 
-        final int defaultKeyTextOffsetX =
-            ConfigGetter.getPixel(
-                keyboardConfig, "key_text_offset_x", config.getFloat("key_text_offset_x"));
-        final int defaultKeyTextOffsetY =
-            ConfigGetter.getPixel(
-                keyboardConfig, "key_text_offset_y", config.getFloat("key_text_offset_y"));
-        final int defaultKeySymbolOffsetX =
-            ConfigGetter.getPixel(
-                keyboardConfig, "key_symbol_offset_x", config.getFloat("key_symbol_offset_x"));
-        final int defaultKeySymbolOffsetY =
-            ConfigGetter.getPixel(
-                keyboardConfig, "key_symbol_offset_y", config.getFloat("key_symbol_offset_y"));
-        final int defaultKeyHintOffsetX =
-            ConfigGetter.getPixel(
-                keyboardConfig, "key_hint_offset_x", config.getFloat("key_hint_offset_x"));
-        final int defaultKeyHintOffsetY =
-            ConfigGetter.getPixel(
-                keyboardConfig, "key_hint_offset_y", config.getFloat("key_hint_offset_y"));
-        final int defaultKeyPressOffsetX =
-            ConfigGetter.getInt(
-                keyboardConfig, "key_press_offset_x", config.getInt("key_press_offset_x"));
-        final int defaultKeyPressOffsetY =
-            ConfigGetter.getInt(
-                keyboardConfig, "key_press_offset_y", config.getInt("key_press_offset_y"));
-
         final Key key = new Key(context, this, mk);
         key.setKey_text_offset_x(
             ConfigGetter.getPixel(mk, "key_text_offset_x", defaultKeyTextOffsetX));
@@ -642,6 +643,16 @@ public class Keyboard {
   //    return setModifier(KeyEvent.META_FUNCTION_ON, on || keyDown);
   //  }
 
+  /** 清除全部修饰键的按下与锁定状态，缓存的键盘重新启用时调用 */
+  public void clearModifiers() {
+    setShifted(false, false);
+    setAltOn(false, false);
+    setCtrlOn(false, false);
+    setSymOn(false, false);
+    setMetaOn(false, false);
+    mModifierState = 0;
+  }
+
   public boolean resetShifted() {
     if (mShiftKey != null && !mShiftKey.isOn()) return setModifier(KeyEvent.META_SHIFT_ON, false);
     return false;
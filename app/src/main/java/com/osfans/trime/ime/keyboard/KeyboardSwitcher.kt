@@ -1,9 +1,12 @@
 package com.osfans.trime.ime.keyboard
 
+import android.content.ComponentCallbacks2
 import android.content.res.Configuration
 import com.osfans.trime.data.AppPrefs
 import com.osfans.trime.data.Config
+import com.osfans.trime.data.Theme
 import com.osfans.trime.ime.core.Trime
+import com.osfans.trime.util.ConfigGetter.getBoolean
 import com.osfans.trime.util.appContext
 import timber.log.Timber
 
@@ -15,11 +18,19 @@ class KeyboardSwitcher {
 
     private var currentDisplayWidth: Int = 0
 
-    lateinit var keyboards: Array<Keyboard>
     lateinit var keyboardNames: List<String>
+    private var keyboardIndex: Map<String, Int> = emptyMap()
 
-    /** To get current keyboard instance. **/
-    val currentKeyboard: Keyboard get() = keyboards[currentId]
+    /** Identifies a built [Keyboard]: its layout name, usable width and orientation. */
+    private data class KeyboardSpec(val name: String, val width: Int, val land: Boolean)
+
+    /** Keyboards built so far for [cachedTheme], constructed on first use. */
+    private val keyboardCache = HashMap<KeyboardSpec, Keyboard>()
+    private var cachedTheme: Theme? = null
+
+    /** To get current keyboard instance, resolved once whenever the keyboard is set. **/
+    lateinit var currentKeyboard: Keyboard
+        private set
     /** To get [currentKeyboard]'s ascii mode. **/
     val asciiMode: Boolean get() = currentKeyboard.asciiMode
 
@@ -32,70 +43,103 @@ class KeyboardSwitcher {
         Timber.d(methodName)
         val ims = Trime.getService()
         Timber.d(methodName + "getConfig")
-        keyboardNames = Config.get(ims).keyboardNames
+        val config = Config.get(ims)
+        keyboardNames = config.keyboardNames
+        keyboardIndex = keyboardNames.withIndex().associate { it.value to it.index }
         Timber.d(methodName + "land")
         val land = (
             ims.resources.configuration.orientation
                 == Configuration.ORIENTATION_LANDSCAPE
             )
         Timber.d(methodName + "getConfig")
-        Config.get(ims).getKeyboardPadding(land)
+        config.getKeyboardPadding(land)
         Timber.d("update KeyboardPadding: KeyboardSwitcher.init")
 
-        Timber.d(methodName + "getKeyboards")
-        keyboards = Array(keyboardNames.size) { i ->
-            Keyboard(ims, keyboardNames[i])
+        // Built keyboards stay valid until the theme, schema style or color scheme changes.
+        val theme = config.themeModel
+        if (theme !== cachedTheme) {
+            keyboardCache.clear()
+            cachedTheme = theme
         }
+        // Reused keyboards start over like newly built ones, without shift or other modifiers held
+        keyboardCache.values.forEach { it.clearModifiers() }
         Timber.d(methodName + "setKeyboard")
         setKeyboard(0)
         Timber.d(methodName + "finish")
     }
 
+    /** The spec of the keyboard at [id] for the current width and orientation. */
+    private fun specOf(id: Int): KeyboardSpec {
+        val ims = Trime.getService()
+        val padding = Config.get(ims).keyboardPadding
+        return KeyboardSpec(
+            keyboardNames[id],
+            ims.resources.displayMetrics.widthPixels - padding[0] - padding[1],
+            ims.resources.configuration.orientation == Configuration.ORIENTATION_LANDSCAPE
+        )
+    }
+
+    /** Returns the keyboard at [id], building it for the current width and orientation if needed. */
+    private fun getKeyboard(id: Int): Keyboard {
+        val spec = specOf(id)
+        return keyboardCache.getOrPut(spec) {
+            Timber.d("\t<TrimeInit>\tgetKeyboard()\t%s", spec)
+            Keyboard(Trime.getService(), spec.name)
+        }
+    }
+
+    /** Whether the keyboard at [id] is locked, read from the theme when it is not built. */
+    private fun isLock(id: Int): Boolean {
+        if (id == currentId) return currentKeyboard.isLock
+        keyboardCache[specOf(id)]?.let { return it.isLock }
+        return Config.get(Trime.getService()).getKeyboard(keyboardNames[id])?.getBoolean("lock", false) ?: false
+    }
+
+    /** Drops every built keyboard except the current one, called on memory pressure. */
+    fun trimMemory(level: Int) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return
+        val current = if (currentId.isValidId()) currentKeyboard else null
+        keyboardCache.values.retainAll { it === current }
+    }
+
+    private fun indexOf(name: String): Int = keyboardIndex[name] ?: -1
+
+    /** Resolves a keyboard [name], including `.default`, `.prior`, `.next` and so on, to its index. */
+    private fun resolveId(name: String?): Int {
+        val i = if (currentId.isValidId()) currentId else 0
+        if (name.isNullOrEmpty()) return if (isLock(i)) i else lastLockId
+        return when (name) {
+            ".default" -> 0
+            ".prior" -> currentId - 1
+            ".next" -> currentId + 1
+            ".last" -> lastId
+            ".last_lock" -> lastLockId
+            ".ascii" -> {
+                val asciiKeyboard = (if (i == currentId) currentKeyboard else getKeyboard(i)).asciiKeyboard
+                if (asciiKeyboard.isNullOrEmpty()) i else indexOf(asciiKeyboard)
+            }
+            else -> indexOf(name)
+        }
+    }
+
     /**
      * Switch to a certain keyboard by given [name].
      */
     fun switchToKeyboard(name: String?) {
-        var i = if (currentId.isValidId()) currentId else 0
-        i = when {
-            name.isNullOrEmpty() -> if (keyboards[i].isLock) i else lastLockId
-            name.contentEquals(".default") -> 0
-            name.contentEquals(".prior") -> currentId - 1
-            name.contentEquals(".next") -> currentId + 1
-            name.contentEquals(".last") -> lastId
-            name.contentEquals(".last_lock") -> lastLockId
-            name.contentEquals(".ascii") -> {
-                val asciiKeyboard = keyboards[i].asciiKeyboard
-                if (asciiKeyboard == null || asciiKeyboard.isEmpty()) { i } else { keyboardNames.indexOf(asciiKeyboard) }
-            }
-            else -> keyboardNames.indexOf(name)
-        }
-        setKeyboard(i)
+        setKeyboard(resolveId(name))
     }
     /**
      * Switch to a certain keyboard by given [name].
      */
     fun startKeyboard(name: String?) {
-        var i = if (currentId.isValidId()) currentId else 0
-        i = when {
-            name.isNullOrEmpty() -> if (keyboards[i].isLock) i else lastLockId
-            name.contentEquals(".default") -> 0
-            name.contentEquals(".prior") -> currentId - 1
-            name.contentEquals(".next") -> currentId + 1
-            name.contentEquals(".last") -> lastId
-            name.contentEquals(".last_lock") -> lastLockId
-            name.contentEquals(".ascii") -> {
-                val asciiKeyboard = keyboards[i].asciiKeyboard
-                if (asciiKeyboard == null || asciiKeyboard.isEmpty()) { i } else { keyboardNames.indexOf(asciiKeyboard) }
-            }
-            else -> keyboardNames.indexOf(name)
-        }
+        var i = resolveId(name)
 
-        if (i == 0 && keyboardNames.contains("mini")) {
+        if (i == 0 && keyboardIndex.containsKey("mini")) {
             if (AppPrefs.defaultInstance().looks.useMiniKeyboard) {
                 val realkeyboard = appContext.getResources().getConfiguration().keyboard
                 if (realkeyboard != Configuration.KEYBOARD_NOKEYS) {
                     Timber.i("onStartInputView() configuration.keyboard=" + realkeyboard + ", keyboardType=" + i)
-                    i = keyboardNames.indexOf("mini")
+                    i = indexOf("mini")
                 }
             }
         }
@@ -116,15 +160,16 @@ class KeyboardSwitcher {
     private fun setKeyboard(id: Int) {
         Timber.d("\t<TrimeInit>\tsetKeyboard()\t" + currentId + "->" + id)
         lastId = currentId
-        if (lastId.isValidId() && keyboards[lastId].isLock) {
+        if (lastId.isValidId() && isLock(lastId)) {
             lastLockId = lastId
         }
         currentId = if (id.isValidId()) id else 0
+        currentKeyboard = getKeyboard(currentId)
     }
 
     public fun getCurrentKeyboardName(): String {
         return keyboardNames.get(currentId)
     }
 
-    private fun Int.isValidId() = this in keyboards.indices
+    private fun Int.isValidId() = this in keyboardNames.indices
 }
@@ -28,11 +28,10 @@ import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.GradientDrawable;
-import android.graphics.drawable.StateListDrawable;
-import android.os.Build;
 import android.os.Message;
 import android.text.TextUtils;
 import android.util.AttributeSet;
+import android.util.StateSet;
 import android.view.GestureDetector;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -47,15 +46,16 @@ import androidx.annotation.NonNull;
 import com.osfans.trime.R;
 import com.osfans.trime.data.AppPrefs;
 import com.osfans.trime.data.Config;
+import com.osfans.trime.data.Theme;
 import com.osfans.trime.databinding.KeyboardKeyPreviewBinding;
 import com.osfans.trime.ime.enums.KeyEventType;
 import com.osfans.trime.ime.lifecycle.CoroutineScopeJava;
 import com.osfans.trime.util.LeakGuardHandlerWrapper;
-import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 import kotlin.coroutines.CoroutineContext;
 import kotlinx.coroutines.CoroutineScope;
 import timber.log.Timber;
@@ -120,7 +120,10 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
   private int mLabelTextSize;
   private int mKeyTextSize;
   private ColorStateList mKeyTextColor;
-  private StateListDrawable mKeyBackColor;
+  /** 主題中的按鍵背景，與 {@link Key#KEY_STATES} 一一對應 */
+  private final Drawable[] mKeyBackColors = new Drawable[Key.KEY_STATES.length];
+  /** 各按鍵在 {@link Key#KEY_STATES} 各狀態下的背景，綁定鍵盤時預先解析 */
+  private Drawable[][] mKeyBackgrounds;
   private int key_symbol_color, hilited_key_symbol_color;
   private int mSymbolSize;
   private final Paint mPaintSymbol;
@@ -190,8 +193,6 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
   private int mRepeatKeyIndex = NOT_A_KEY;
   private final int mPopupLayout;
   private boolean mAbortKey;
-  private Key mInvalidatedKey;
-  private final Rect mClipRegion = new Rect(0, 0, 0, 0);
   private boolean mPossiblePoly;
   private final SwipeTracker mSwipeTracker = new SwipeTracker();
   private final boolean mDisambiguateSwipe;
@@ -225,6 +226,14 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
   private boolean mKeyboardChanged;
   /** The canvas for the above mutable keyboard bitmap */
   private Canvas mCanvas;
+  /** 各按鍵上次繪製到緩衝區時的狀態，與 {@link #mKeys} 一一對應 */
+  private KeyRenderState[] mKeyRenderStates;
+  /** 各鍵盤的按鍵圖像，鍵盤被釋放時一併釋放；主題或提示、符號的顯示變化時清空 */
+  private final Map<Keyboard, KeyImage[][]> mKeyImageCache = new WeakHashMap<>();
+  /** 當前鍵盤的按鍵圖像，按按鍵序號和 {@link Key#KEY_STATES} 存放，首次繪製時生成 */
+  private KeyImage[][] mKeyImages;
+  /** 需要隨輸入狀態刷新的按鍵序號 */
+  private int[] mComposingKeyIndices;
   // The accessibility manager for accessibility support */
   // private AccessibilityManager mAccessibilityManager;
   // The audio manager for accessibility support */
@@ -237,9 +246,6 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
 
   private boolean mShowHint = true, mShowSymbol = true;
 
-  private Method findStateDrawableIndex;
-  private Method getStateDrawable;
-
   private String labelEnter = "";
   private Map<String, String> mEnterLabels;
   private int enterLabelMode;
@@ -334,54 +340,113 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
     }
   }
 
+  /** 按鍵繪製時的背景狀態和文字，與當前值相同時按鍵無需重繪 */
+  private static class KeyRenderState {
+    int[] drawableState;
+    String label;
+    String symbolLabel;
+    String hint;
+  }
+
+  /** 按鍵在一種背景狀態下畫好的背景和文字，文字不變時直接貼到緩衝區 */
+  private static class KeyImage {
+    final Bitmap bitmap;
+    final String label;
+    final String symbolLabel;
+    final String hint;
+
+    KeyImage(Bitmap bitmap, KeyRenderState state) {
+      this.bitmap = bitmap;
+      label = state.label;
+      symbolLabel = state.symbolLabel;
+      hint = state.hint;
+    }
+
+    boolean matches(KeyRenderState state) {
+      return TextUtils.equals(label, state.label)
+          && TextUtils.equals(symbolLabel, state.symbolLabel)
+          && TextUtils.equals(hint, state.hint);
+    }
+  }
+
   public void setShowHint(final boolean value) {
+    if (mShowHint != value) clearKeyImages();
     mShowHint = value;
   }
 
   public void setShowSymbol(final boolean value) {
+    if (mShowSymbol != value) clearKeyImages();
     mShowSymbol = value;
   }
 
+  /** 丟棄所有鍵盤的按鍵圖像，在主題樣式或顯示設置變化後重新生成 */
+  private void clearKeyImages() {
+    mKeyImageCache.clear();
+    mKeyImages = null;
+    if (mKeyboard != null && mKeys != null) bindKeyImages();
+  }
+
+  private void bindKeyImages() {
+    KeyImage[][] images = mKeyImageCache.get(mKeyboard);
+    if (images == null || images.length != mKeys.length) {
+      images = new KeyImage[mKeys.length][Key.KEY_STATES.length];
+      mKeyImageCache.put(mKeyboard, images);
+    }
+    mKeyImages = images;
+  }
+
   public void reset(final Context context) {
     final Config config = Config.get(context);
-    key_symbol_color = config.getColor("key_symbol_color");
-    hilited_key_symbol_color = config.getColor("hilited_key_symbol_color");
-    mShadowColor = config.getColor("shadow_color");
+    final Theme theme = config.getThemeModel();
+    key_symbol_color = theme.getKeySymbolColor();
+    hilited_key_symbol_color = theme.getHilitedKeySymbolColor();
+    mShadowColor = theme.getShadowColor();
 
-    mSymbolSize = config.getPixel("symbol_text_size", 10);
-    mKeyTextSize = config.getPixel("key_text_size", 22);
+    mSymbolSize = Config.getPixel(theme.getSymbolTextSize(), 10);
+    mKeyTextSize = Config.getPixel(theme.getKeyTextSize(), 22);
     mVerticalCorrection = config.getPixel("vertical_correction");
     setProximityCorrectionEnabled(config.getBoolean("proximity_correction"));
     mPreviewOffset = config.getPixel("preview_offset");
     mPreviewHeight = config.getPixel("preview_height");
-    mLabelTextSize = config.getPixel("key_long_text_size");
+    mLabelTextSize = Config.getPixel(theme.getKeyLongTextSize());
     if (mLabelTextSize == 0) mLabelTextSize = mKeyTextSize;
 
     mBackgroundDimAmount = config.getFloat("background_dim_amount");
     mShadowRadius = config.getFloat("shadow_radius");
     final float mRoundCorner = config.getFloat("round_corner");
 
-    mKeyBackColor = new StateListDrawable();
-    mKeyBackColor.addState(
-        Key.KEY_STATE_PRESSED_ON, config.getColorDrawable("hilited_on_key_back_color"));
-    mKeyBackColor.addState(
-        Key.KEY_STATE_PRESSED_OFF, config.getColorDrawable("hilited_off_key_back_color"));
-    mKeyBackColor.addState(Key.KEY_STATE_NORMAL_ON, config.getColorDrawable("on_key_back_color"));
-    mKeyBackColor.addState(Key.KEY_STATE_NORMAL_OFF, config.getColorDrawable("off_key_back_color"));
-    mKeyBackColor.addState(
-        Key.KEY_STATE_PRESSED, config.getColorDrawable("hilited_key_back_color"));
-    mKeyBackColor.addState(Key.KEY_STATE_NORMAL, config.getColorDrawable("key_back_color"));
+    final Drawable[] keyBackColors = {
+      config.getColorDrawable("hilited_on_key_back_color"),
+      config.getColorDrawable("hilited_off_key_back_color"),
+      config.getColorDrawable("on_key_back_color"),
+      config.getColorDrawable("off_key_back_color"),
+      config.getColorDrawable("hilited_key_back_color"),
+      config.getColorDrawable("key_back_color")
+    };
+    // 與 StateListDrawable 相同：取第一個匹配且已設置的狀態
+    for (int i = 0; i < Key.KEY_STATES.length; i++) {
+      mKeyBackColors[i] = null;
+      for (int j = 0; j < Key.KEY_STATES.length; j++) {
+        if (keyBackColors[j] != null
+            && StateSet.stateSetMatches(Key.KEY_STATES[j], Key.KEY_STATES[i])) {
+          mKeyBackColors[i] = keyBackColors[j];
+          break;
+        }
+      }
+    }
+    resolveKeyBackgrounds();
+    clearKeyImages();
 
     mKeyTextColor =
         new ColorStateList(
             Key.KEY_STATES,
             new int[] {
-              config.getColor("hilited_on_key_text_color"),
-              config.getColor("hilited_off_key_text_color"),
-              config.getColor("on_key_text_color"),
-              config.getColor("off_key_text_color"),
-              config.getColor("hilited_key_text_color"),
-              config.getColor("key_text_color")
+              theme.getHilitedOnKeyTextColor(),
+              theme.getHilitedOffKeyTextColor(),
+              theme.getOnKeyTextColor(),
+              theme.getOffKeyTextColor(),
+              theme.getHilitedKeyTextColor(),
+              theme.getKeyTextColor()
             });
 
     final Integer color = config.getColor("preview_text_color");
@@ -416,18 +481,6 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
   public KeyboardView(final Context context, final AttributeSet attrs) {
     super(context, attrs);
 
-    try {
-      findStateDrawableIndex =
-          StateListDrawable.class.getMethod(
-              Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
-                  ? "findStateDrawableIndex"
-                  : "getStateDrawableIndex",
-              int[].class);
-      getStateDrawable = StateListDrawable.class.getMethod("getStateDrawable", int.class);
-    } catch (Exception ex) {
-      Timber.e(ex, "Get Drawable Exception");
-    }
-
     mPreviewText = KeyboardKeyPreviewBinding.inflate(LayoutInflater.from(context)).getRoot();
     mPaint = new Paint();
     mPaint.setAntiAlias(true);
@@ -575,6 +628,18 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
     mKeyboard = keyboard;
     List<Key> keys = mKeyboard.getKeys();
     mKeys = keys.toArray(new Key[keys.size()]);
+    mKeyRenderStates = new KeyRenderState[mKeys.length];
+    final List<Key> composingKeys = mKeyboard.getComposingKeys();
+    final int[] composingKeyIndices = new int[composingKeys.size()];
+    int composingKeyCount = 0;
+    for (int i = 0; i < mKeys.length; i++) {
+      mKeyRenderStates[i] = new KeyRenderState();
+      if (composingKeyCount < composingKeyIndices.length && composingKeys.contains(mKeys[i]))
+        composingKeyIndices[composingKeyCount++] = i;
+    }
+    mComposingKeyIndices = Arrays.copyOf(composingKeyIndices, composingKeyCount);
+    resolveKeyBackgrounds();
+    bindKeyImages();
     setKeyboardBackground();
     requestLayout();
     // Hint to reallocate the buffer if the size changed
@@ -606,7 +671,7 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
   public boolean setModifier(Key key) {
     if (mKeyboard != null) {
       if (mKeyboard.clikModifierKey(key.isShiftLock(), key.getModifierKeyOnMask())) {
-        invalidateAllKeys();
+        invalidateChangedKeys();
         return true;
       }
     }
@@ -625,8 +690,7 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
     if (mKeyboard != null) {
       // todo 扩展为设置全部修饰键的状态
       if (mKeyboard.setShifted(on, shifted)) {
-        // The whole keyboard probably needs to be redrawn
-        invalidateAllKeys();
+        invalidateChangedKeys();
         return true;
       }
     }
@@ -636,8 +700,7 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
   private boolean resetShifted() {
     if (mKeyboard != null) {
       if (mKeyboard.resetShifted()) {
-        // The whole keyboard probably needs to be redrawn
-        invalidateAllKeys();
+        invalidateChangedKeys();
         return true;
       }
     }
@@ -648,8 +711,7 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
   private boolean resetModifer() {
     if (mKeyboard != null) {
       if (mKeyboard.resetModifer()) {
-        // The whole keyboard probably needs to be redrawn
-        invalidateAllKeys();
+        invalidateChangedKeys();
         return true;
       }
     }
@@ -660,7 +722,7 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
   private void refreshModifier() {
     if (mKeyboard != null) {
       if (mKeyboard.refreshModifier()) {
-        invalidateAllKeys();
+        invalidateChangedKeys();
       }
     }
   }
@@ -863,124 +925,37 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
     canvas.clipRect(mDirtyRect);
 
     final Paint paint = mPaint;
-    Drawable keyBackground;
-    final Rect clipRegion = mClipRegion;
-    final Rect padding = mPadding;
     final int kbdPaddingLeft = getPaddingLeft();
     final int kbdPaddingTop = getPaddingTop();
     final Key[] keys = mKeys;
-    final Key invalidKey = mInvalidatedKey;
-
-    boolean drawSingleKey = false;
-    if (invalidKey != null && canvas.getClipBounds(clipRegion)) {
-      // Is clipRegion completely contained within the invalidated key?
-      if (invalidKey.getX() + kbdPaddingLeft - 1 <= clipRegion.left
-          && invalidKey.getY() + kbdPaddingTop - 1 <= clipRegion.top
-          && invalidKey.getX() + invalidKey.getWidth() + kbdPaddingLeft + 1 >= clipRegion.right
-          && invalidKey.getY() + invalidKey.getHeight() + kbdPaddingTop + 1 >= clipRegion.bottom) {
-        drawSingleKey = true;
-      }
-    }
+    final Rect dirtyRect = mDirtyRect;
+
     canvas.drawColor(0x00000000, PorterDuff.Mode.CLEAR);
     final int keyCount = keys.length;
-    final float symbolBase = padding.top - mPaintSymbol.getFontMetrics().top;
-    final float hintBase = -padding.bottom - mPaintSymbol.getFontMetrics().bottom;
-
-    Timber.i(
-        "onBufferDraw() keyCount=%d, drawSingleKey=%s, invalidKeyIsNull=%s",
-        keyCount, drawSingleKey, invalidKey == null);
-    mKeyboard.printModifierKeyState("onBufferDraw, drawSingleKey=" + drawSingleKey);
-    for (final Key key : keys) {
-      if (drawSingleKey && invalidKey != key) {
-        continue;
+    // Draw a drop shadow for the text
+    paint.setShadowLayer(mShadowRadius, 0, 0, mShadowColor);
+    mPaintSymbol.setShadowLayer(mShadowRadius, 0, 0, mShadowColor);
+
+    Timber.i("onBufferDraw() keyCount=%d, dirtyRect=%s", keyCount, dirtyRect);
+    for (int i = 0; i < keyCount; i++) {
+      final Key key = keys[i];
+      final int keyLeft = key.getX() + kbdPaddingLeft;
+      final int keyTop = key.getY() + kbdPaddingTop;
+      // 只重繪與髒區相交的按鍵
+      if (!dirtyRect.intersects(
+          keyLeft, keyTop, keyLeft + key.getWidth(), keyTop + key.getHeight())) continue;
+      updateKeyRenderState(i);
+      final KeyRenderState state = mKeyRenderStates[i];
+      final int stateIndex = getStateIndex(state.drawableState);
+      KeyImage image = mKeyImages[i][stateIndex];
+      if (image == null || !image.matches(state)) {
+        image = new KeyImage(drawKeyImage(i, stateIndex), state);
+        mKeyImages[i][stateIndex] = image;
       }
-      int[] drawableState = key.getCurrentDrawableState();
-      keyBackground = key.getBackColorForState(drawableState);
-      if (keyBackground == null) {
-        try {
-          final int index = (int) findStateDrawableIndex.invoke(mKeyBackColor, drawableState);
-          keyBackground = (Drawable) getStateDrawable.invoke(mKeyBackColor, index);
-        } catch (Exception ex) {
-          Timber.e(ex, "Get Drawable Exception");
-        }
-      }
-      if (keyBackground instanceof GradientDrawable) {
-        ((GradientDrawable) keyBackground)
-            .setCornerRadius(
-                key.getRound_corner() != null && key.getRound_corner() > 0
-                    ? key.getRound_corner()
-                    : mKeyboard.getRoundCorner());
-      }
-      Integer color = key.getTextColorForState(drawableState);
-      mPaint.setColor(color != null ? color : mKeyTextColor.getColorForState(drawableState, 0));
-      color = key.getSymbolColorForState(drawableState);
-      mPaintSymbol.setColor(
-          color != null ? color : (key.isPressed() ? hilited_key_symbol_color : key_symbol_color));
-
-      // Switch the character to uppercase if shift is pressed
-      String label = key.getLabel();
-      if (label.equals("enter_labels")) label = labelEnter;
-      final String hint = key.getHint();
-      int left = (key.getWidth() - padding.left - padding.right) / 2 + padding.left;
-      int top = padding.top;
-
-      final Rect bounds = keyBackground.getBounds();
-      if (key.getWidth() != bounds.right || key.getHeight() != bounds.bottom) {
-        keyBackground.setBounds(0, 0, key.getWidth(), key.getHeight());
-      }
-      canvas.translate(key.getX() + kbdPaddingLeft, key.getY() + kbdPaddingTop);
-      keyBackground.draw(canvas);
-
-      if (!TextUtils.isEmpty(label)) {
-        // For characters, use large font. For labels like "Done", use small font.
-        if (key.getKey_text_size() != null && key.getKey_text_size() > 0) {
-          paint.setTextSize(key.getKey_text_size());
-        } else {
-          paint.setTextSize(label.length() > 1 ? mLabelTextSize : mKeyTextSize);
-        }
-        // Draw a drop shadow for the text
-        paint.setShadowLayer(mShadowRadius, 0, 0, mShadowColor);
-        // Draw the text
-        canvas.drawText(
-            label,
-            left + key.getKey_text_offset_x(),
-            (key.getHeight() - padding.top - padding.bottom) / 2f
-                + (paint.getTextSize() - paint.descent()) / 2f
-                + top
-                + key.getKey_text_offset_y(),
-            paint);
-        if (mShowSymbol) {
-          String labelSymbol = key.getSymbolLabel();
-          if (!TextUtils.isEmpty(labelSymbol)) {
-            mPaintSymbol.setTextSize(
-                key.getSymbol_text_size() != null && key.getSymbol_text_size() > 0
-                    ? key.getSymbol_text_size()
-                    : mSymbolSize);
-            mPaintSymbol.setShadowLayer(mShadowRadius, 0, 0, mShadowColor);
-            canvas.drawText(
-                labelSymbol,
-                left + key.getKey_symbol_offset_x(),
-                symbolBase + key.getKey_symbol_offset_y(),
-                mPaintSymbol);
-          }
-        }
-        if (mShowHint) {
-          if (!TextUtils.isEmpty(hint)) {
-            mPaintSymbol.setShadowLayer(mShadowRadius, 0, 0, mShadowColor);
-            canvas.drawText(
-                hint,
-                left + key.getKey_hint_offset_x(),
-                key.getHeight() + hintBase + key.getKey_hint_offset_y(),
-                mPaintSymbol);
-          }
-        }
-
-        // Turn off drop shadow
-        paint.setShadowLayer(0, 0, 0, 0);
-      }
-      canvas.translate(-key.getX() - kbdPaddingLeft, -key.getY() - kbdPaddingTop);
+      canvas.drawBitmap(image.bitmap, keyLeft, keyTop, null);
     }
-    mInvalidatedKey = null;
+    // Turn off drop shadow
+    paint.setShadowLayer(0, 0, 0, 0);
     // Overlay a dark rectangle to dim the keyboard
     if (mMiniKeyboardOnScreen) {
       paint.setColor((int) (mBackgroundDimAmount * 0xFF) << 24);
@@ -1003,6 +978,90 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
     mDirtyRect.setEmpty();
   }
 
+  /** 按 {@link #mKeyRenderStates} 中記錄的文字，把按鍵在第 stateIndex 種背景狀態下的樣子畫成圖像 */
+  @NonNull
+  private Bitmap drawKeyImage(int keyIndex, int stateIndex) {
+    final Key key = mKeys[keyIndex];
+    final KeyRenderState state = mKeyRenderStates[keyIndex];
+    final Bitmap bitmap =
+        Bitmap.createBitmap(
+            Math.max(1, key.getWidth()), Math.max(1, key.getHeight()), Bitmap.Config.ARGB_8888);
+    final Canvas canvas = new Canvas(bitmap);
+    final Paint paint = mPaint;
+    final Rect padding = mPadding;
+    final float symbolBase = padding.top - mPaintSymbol.getFontMetrics().top;
+    final float hintBase = -padding.bottom - mPaintSymbol.getFontMetrics().bottom;
+    final int[] drawableState = state.drawableState;
+    final Drawable keyBackground = mKeyBackgrounds[keyIndex][stateIndex];
+    if (keyBackground instanceof GradientDrawable) {
+      ((GradientDrawable) keyBackground)
+          .setCornerRadius(
+              key.getRound_corner() != null && key.getRound_corner() > 0
+                  ? key.getRound_corner()
+                  : mKeyboard.getRoundCorner());
+    }
+    Integer color = key.getTextColorForState(drawableState);
+    mPaint.setColor(color != null ? color : mKeyTextColor.getColorForState(drawableState, 0));
+    color = key.getSymbolColorForState(drawableState);
+    mPaintSymbol.setColor(
+        color != null ? color : (key.isPressed() ? hilited_key_symbol_color : key_symbol_color));
+
+    final String label = state.label;
+    final String hint = state.hint;
+    int left = (key.getWidth() - padding.left - padding.right) / 2 + padding.left;
+    int top = padding.top;
+
+    if (keyBackground != null) {
+      final Rect bounds = keyBackground.getBounds();
+      if (key.getWidth() != bounds.right || key.getHeight() != bounds.bottom) {
+        keyBackground.setBounds(0, 0, key.getWidth(), key.getHeight());
+      }
+      keyBackground.draw(canvas);
+    }
+
+    if (!TextUtils.isEmpty(label)) {
+      // For characters, use large font. For labels like "Done", use small font.
+      if (key.getKey_text_size() != null && key.getKey_text_size() > 0) {
+        paint.setTextSize(key.getKey_text_size());
+      } else {
+        paint.setTextSize(label.length() > 1 ? mLabelTextSize : mKeyTextSize);
+      }
+      // Draw the text
+      canvas.drawText(
+          label,
+          left + key.getKey_text_offset_x(),
+          (key.getHeight() - padding.top - padding.bottom) / 2f
+              + (paint.getTextSize() - paint.descent()) / 2f
+              + top
+              + key.getKey_text_offset_y(),
+          paint);
+      if (mShowSymbol) {
+        String labelSymbol = state.symbolLabel;
+        if (!TextUtils.isEmpty(labelSymbol)) {
+          mPaintSymbol.setTextSize(
+              key.getSymbol_text_size() != null && key.getSymbol_text_size() > 0
+                  ? key.getSymbol_text_size()
+                  : mSymbolSize);
+          canvas.drawText(
+              labelSymbol,
+              left + key.getKey_symbol_offset_x(),
+              symbolBase + key.getKey_symbol_offset_y(),
+              mPaintSymbol);
+        }
+      }
+      if (mShowHint) {
+        if (!TextUtils.isEmpty(hint)) {
+          canvas.drawText(
+              hint,
+              left + key.getKey_hint_offset_x(),
+              key.getHeight() + hintBase + key.getKey_hint_offset_y(),
+              mPaintSymbol);
+        }
+      }
+    }
+    return bitmap;
+  }
+
   private int getKeyIndices(final int x, final int y, final int[] allKeys) {
     final Key[] keys = mKeys;
     int primaryIndex = NOT_A_KEY;
@@ -1230,6 +1289,73 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
     invalidate();
   }
 
+  private static int getStateIndex(int[] drawableState) {
+    for (int i = 0; i < Key.KEY_STATES.length; i++) {
+      if (Key.KEY_STATES[i] == drawableState) return i;
+    }
+    return Key.KEY_STATES.length - 1;
+  }
+
+  /** 按鍵自身的背景優先，未設置時使用主題背景 */
+  private void resolveKeyBackgrounds() {
+    if (mKeys == null) return;
+    final Drawable[][] backgrounds = new Drawable[mKeys.length][Key.KEY_STATES.length];
+    for (int i = 0; i < mKeys.length; i++) {
+      for (int j = 0; j < Key.KEY_STATES.length; j++) {
+        final Drawable background = mKeys[i].getBackColorForState(Key.KEY_STATES[j]);
+        backgrounds[i][j] = background != null ? background : mKeyBackColors[j];
+      }
+    }
+    mKeyBackgrounds = backgrounds;
+  }
+
+  /**
+   * 記錄按鍵當前的背景狀態和文字
+   *
+   * @param keyIndex 按鍵序號
+   * @return 與上次繪製時相比是否有變化
+   */
+  private boolean updateKeyRenderState(int keyIndex) {
+    final Key key = mKeys[keyIndex];
+    final KeyRenderState state = mKeyRenderStates[keyIndex];
+    final int[] drawableState = key.getCurrentDrawableState();
+    String label = key.getLabel();
+    if ("enter_labels".equals(label)) label = labelEnter;
+    final String symbolLabel = key.getSymbolLabel();
+    final String hint = key.getHint();
+    final boolean changed =
+        state.drawableState != drawableState
+            || !TextUtils.equals(state.label, label)
+            || !TextUtils.equals(state.symbolLabel, symbolLabel)
+            || !TextUtils.equals(state.hint, hint);
+    state.drawableState = drawableState;
+    state.label = label;
+    state.symbolLabel = symbolLabel;
+    state.hint = hint;
+    return changed;
+  }
+
+  private void addDirtyKey(@NonNull Key key) {
+    mDirtyRect.union(
+        key.getX() + getPaddingLeft(),
+        key.getY() + getPaddingTop(),
+        key.getX() + key.getWidth() + getPaddingLeft(),
+        key.getY() + key.getHeight() + getPaddingTop());
+  }
+
+  /** 把髒區內的按鍵畫入緩衝區，並只刷新這一區域 */
+  private void drawDirtyKeys() {
+    if (mDirtyRect.isEmpty()) return;
+    if (mBuffer == null || mKeyboardChanged || mDrawPending) {
+      // 整個鍵盤等待重繪，交給 onDraw 處理
+      invalidate();
+      return;
+    }
+    final Rect dirty = new Rect(mDirtyRect);
+    onBufferDraw();
+    invalidate(dirty.left, dirty.top, dirty.right, dirty.bottom);
+  }
+
   /**
    * Invalidates a key so that it will be redrawn on the next repaint. Use this method if only one
    * key is changing it's content. Any changes that affect the position or size of the key may not
@@ -1245,44 +1371,30 @@ public class KeyboardView extends View implements View.OnClickListener, Coroutin
     if (keyIndex < 0 || keyIndex >= mKeys.length) {
       return;
     }
-    final Key key = mKeys[keyIndex];
-    mInvalidatedKey = key;
-    mDirtyRect.union(
-        key.getX() + getPaddingLeft(),
-        key.getY() + getPaddingTop(),
-        key.getX() + key.getWidth() + getPaddingLeft(),
-        key.getY() + key.getHeight() + getPaddingTop());
-    onBufferDraw();
-    Timber.d("\t<TrimeInput>\tinvalidateKey()\tinvalidate");
-    invalidate(
-        key.getX() + getPaddingLeft(),
-        key.getY() + getPaddingTop(),
-        key.getX() + key.getWidth() + getPaddingLeft(),
-        key.getY() + key.getHeight() + getPaddingTop());
+    addDirtyKey(mKeys[keyIndex]);
+    drawDirtyKeys();
     Timber.d("\t<TrimeInput>\tinvalidateKey()\tfinish");
   }
 
-  private void invalidateKeys(final List<Key> keys) {
-    if (keys == null || keys.size() == 0) return;
-    for (Key key : keys) {
-      mDirtyRect.union(
-          key.getX() + getPaddingLeft(),
-          key.getY() + getPaddingTop(),
-          key.getX() + key.getWidth() + getPaddingLeft(),
-          key.getY() + key.getHeight() + getPaddingTop());
+  /** 只重繪背景狀態或文字與上次繪製時不同的按鍵，用於修飾鍵和選項變化 */
+  public void invalidateChangedKeys() {
+    if (mKeys == null) return;
+    for (int i = 0; i < mKeys.length; i++) {
+      if (updateKeyRenderState(i)) addDirtyKey(mKeys[i]);
     }
-    onBufferDraw();
-    invalidate();
+    drawDirtyKeys();
   }
 
+  /** 輸入狀態變化後刷新 composing 按鍵，未變化的按鍵不重繪 */
   public void invalidateComposingKeys() {
-    if (mKeyboard != null) {
-      final List<Key> keys = mKeyboard.getComposingKeys();
-      if (keys != null && keys.size() > 5) invalidateAllKeys();
-      else invalidateKeys(keys);
-    } else {
+    if (mKeyboard == null || mComposingKeyIndices == null) {
       Timber.e("invalidateComposingKeys() mKeyboard==null");
+      return;
+    }
+    for (int index : mComposingKeyIndices) {
+      if (updateKeyRenderState(index)) addDirtyKey(mKeys[index]);
     }
+    drawDirtyKeys();
   }
 
   private boolean openPopupIfRequired(final MotionEvent me) {
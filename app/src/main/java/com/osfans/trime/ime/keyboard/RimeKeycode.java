@@ -2,16 +2,17 @@ package com.osfans.trime.ime.keyboard;
 
 import com.osfans.trime.core.Rime;
 import com.osfans.trime.ime.enums.Keycode;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import timber.log.Timber;
 
 public class RimeKeycode {
-  private Map<Integer, Integer> rimeKeycode;
+  // 按 keycode 下標緩存 rime 鍵碼，-1 表示尚未查詢
+  private final int[] rimeKeycode;
   private static RimeKeycode self;
 
   private RimeKeycode() {
-    rimeKeycode = new HashMap<>();
+    rimeKeycode = new int[Keycode.values().length];
+    Arrays.fill(rimeKeycode, -1);
   }
 
   public static RimeKeycode get() {
@@ -20,8 +21,13 @@ public class RimeKeycode {
   }
 
   public int getRimeCode(int code) {
-    if (!rimeKeycode.containsKey(code)) rimeKeycode.put(code, rimeCode(code));
-    return rimeKeycode.get(code);
+    if (code < 0 || code >= rimeKeycode.length) return rimeCode(code);
+    int i = rimeKeycode[code];
+    if (i < 0) {
+      i = rimeCode(code);
+      rimeKeycode[code] = i;
+    }
+    return i;
   }
 
   // TODO 把软键盘预设android_keys的keycode(index)->keyname(string)—>rimeKeycode的过程改为直接返回int
@@ -4,6 +4,9 @@ import android.media.AudioAttributes;
 import android.media.AudioManager;
 import android.media.SoundPool;
 import android.view.KeyEvent;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.osfans.trime.core.RimeEngine;
 import com.osfans.trime.data.AppPrefs;
 import com.osfans.trime.util.ConfigGetter;
 import java.io.File;
@@ -11,51 +14,105 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import timber.log.Timber;
 
+/**
+ * 音效包
+ *
+ * <p>配置在 Rime 引擎线程中读取，音频在后台线程中加载，加载完成前不播放；按键规则在加载时编译为 keycode 到音频的表，播放时直接查表。
+ * 音效包未变化时切换主题不重新加载。
+ */
 public class Sound {
+  // 快速连续按键时避免音效被截断或丢弃
+  private static final int MAX_STREAMS = 8;
+
   private final SoundPool sp; // 声明SoundPool的引用
   private int currStreamId; // 当前正播放的streamId
   private int lastKeycode; // 上次按键的键盘码
   private int[] sound; // 音频文件列表
-  private final List<Key> keyset;
   private List<String> files;
-  private static Sound self;
+  // keycode 对应的候选音频序号，null 时播放第一个音频；有多个候选时随机播放
+  private int[][] keySounds;
+  private static volatile Sound self;
+  private static String loadingKey;
+  private final String key;
   private final boolean enable;
-  private int progress;
+  private volatile int progress;
   private int[] melody;
 
   private static final AppPrefs appPrefs = AppPrefs.defaultInstance();
+  private static final ExecutorService loader =
+      Executors.newSingleThreadExecutor(r -> new Thread(r, "SoundLoader"));
 
   public static Sound get() {
     return self;
   }
 
-  public static Sound get(String soundPackageName) {
-    if (self != null) self.sp.release();
-    self = new Sound(soundPackageName);
-    return self;
+  /** 在后台加载音效包，与当前音效包相同且文件未修改时沿用 */
+  public static synchronized void get(String soundPackageName) {
+    final String key = getPackageKey(soundPackageName);
+    final Sound current = self;
+    if (key.equals(loadingKey) || (current != null && key.equals(current.key))) return;
+    loadingKey = key;
+    // librime 的配置只在引擎线程中访问，读取后再交给加载线程
+    RimeEngine.post(
+        () -> {
+          final Map<String, ?> config = ConfigGetter.loadMap(soundPackageName + ".sound", "");
+          loader.execute(() -> load(soundPackageName, key, config));
+        });
+  }
+
+  private static void load(String soundPackageName, String key, @Nullable Map<String, ?> config) {
+    final Sound sound = new Sound(key, config);
+    synchronized (Sound.class) {
+      if (!key.equals(loadingKey)) { // 加载期间又切换了音效包
+        sound.sp.release();
+        return;
+      }
+      loadingKey = null;
+      if (self != null) self.sp.release();
+      self = sound;
+    }
+    Timber.d("Sound package %s loaded", soundPackageName);
+  }
+
+  // 音效包名称与源文件的修改时间
+  @NonNull
+  private static String getPackageKey(String soundPackageName) {
+    final File file =
+        new File(
+            appPrefs.getConf().getUserDataDir() + File.separator + "sound",
+            soundPackageName + ".sound.yaml");
+    return soundPackageName + "@" + file.lastModified() + "," + file.length();
   }
 
   public static boolean isEnable() {
-    if (self == null) return false;
-    return self.enable;
+    final Sound sound = self;
+    if (sound == null) return false;
+    return sound.enable;
   }
 
   public static void resetProgress() {
-    if (self != null) {
-      if (self.progress > 0) self.progress = 0;
+    final Sound sound = self;
+    if (sound != null) {
+      if (sound.progress > 0) sound.progress = 0;
     }
   }
 
-  public Sound(String soundPackageName) {
+  private Sound(String key, @Nullable Map<String, ?> m) {
+    this.key = key;
     AudioAttributes audioAttributes =
         new AudioAttributes.Builder().setLegacyStreamType(AudioManager.STREAM_SYSTEM).build();
-    sp = new SoundPool.Builder().setAudioAttributes(audioAttributes).setMaxStreams(3).build();
-    keyset = new ArrayList<>();
+    sp =
+        new SoundPool.Builder()
+            .setAudioAttributes(audioAttributes)
+            .setMaxStreams(MAX_STREAMS)
+            .build();
     melody = new int[1];
     progress = -1;
 
-    Map<String, ?> m = ConfigGetter.loadMap(soundPackageName + ".sound", "");
     if (m != null) {
       String path = appPrefs.getConf().getUserDataDir() + File.separator + "sound" + File.separator;
       if (m.containsKey("folder")) path = path + m.get("folder") + File.separator;
@@ -79,6 +136,7 @@ public class Sound {
           enable = true;
           return;
         } else if (m.containsKey("keyset")) {
+          final List<Key> keyset = new ArrayList<>();
           List<Map<String, ?>> n = (List<Map<String, ?>>) m.get("keyset");
           for (Map<String, ?> o : n) {
             int max = -1, min = -1;
@@ -107,6 +165,7 @@ public class Sound {
               keyset.add(new Key(min, max, inOrder, sounds));
             }
           }
+          keySounds = compile(keyset);
           enable = true;
           return;
         }
@@ -115,24 +174,37 @@ public class Sound {
     enable = false;
   }
 
+  // 按规则的先后顺序，为每个 keycode 记录第一条匹配规则给出的候选音频
+  @NonNull
+  private static int[][] compile(@NonNull List<Key> keyset) {
+    final int[][] table = new int[KeyEvent.getMaxKeyCode() + 1][];
+    for (int keycode = 0; keycode < table.length; keycode++) {
+      for (Key key : keyset) {
+        final int[] sounds = key.getSounds(keycode);
+        if (sounds != null) {
+          table[keycode] = sounds;
+          break;
+        }
+      }
+    }
+    return table;
+  }
+
   public void play(Integer keycode, Integer volume) {
     if (volume > 0) {
       if (sound.length > 0) {
         float soundVolume = volume / 100f;
+        final int code = keycode == null ? -1 : keycode;
         if (progress >= 0) {
           if (progress >= melody.length) progress = 0;
           currStreamId = melody[progress];
           progress++;
-        } else if (lastKeycode != keycode) {
-          lastKeycode = keycode;
-          for (Key key : keyset) {
-            currStreamId = key.getSound(keycode);
-            if (currStreamId >= 0) {
-              sp.play(sound[currStreamId], soundVolume, soundVolume, 0, 0, 1.0f);
-              return;
-            }
-          }
-          currStreamId = 0;
+        } else if (lastKeycode != code) {
+          lastKeycode = code;
+          final int[] sounds = code >= 0 && code < keySounds.length ? keySounds[code] : null;
+          if (sounds == null) currStreamId = 0;
+          else if (sounds.length == 1) currStreamId = sounds[0];
+          else currStreamId = sounds[(int) (Math.random() * sounds.length)];
         }
         sp.play(sound[currStreamId], soundVolume, soundVolume, 0, 0, 1.0f);
       }
@@ -195,23 +267,23 @@ public class Sound {
       this.sounds = sound;
     }
 
-    public int getSound(int keycode) {
-      if (sounds.length < 1) return -1;
+    /** keycode 的候选音频：按顺序时只有一个，随机时为全部音频；不匹配时返回 null */
+    public int[] getSounds(int keycode) {
+      if (sounds == null || sounds.length < 1) return null;
 
       if (keys != null) {
         int i = keys.indexOf(keycode);
         if (i >= 0) {
-          if (!inOrder) i = (int) (Math.random() * sounds.length);
-          return sounds[i % sounds.length];
+          if (!inOrder) return sounds;
+          return new int[] {sounds[i % sounds.length]};
         }
       } else {
         if (keycode >= min && keycode <= max) {
-          if (inOrder) return sounds[(keycode - min) % sounds.length];
-          int i = (int) (Math.random() * sounds.length);
-          return sounds[i % sounds.length];
+          if (inOrder) return new int[] {sounds[(keycode - min) % sounds.length]};
+          return sounds;
         }
       }
-      return -1;
+      return null;
     }
   }
 }
@@ -37,7 +37,7 @@ public class CandidateAdapter extends RecyclerView.Adapter<RecyclerView.ViewHold
   private Drawable background;
   private PositionType textPosition, commentPosition;
   private static int COMMENT_UNKNOW = 0, COMMENT_TOP = 1, COMMENT_DOWN = 2, COMMENT_RIGHT = 3;
-  private static int comment_position;
+  private static int comment_position, config_comment_position;
   private static boolean hide_comment;
 
   public CandidateAdapter(Context context) {
@@ -49,6 +49,18 @@ public class CandidateAdapter extends RecyclerView.Adapter<RecyclerView.ViewHold
     comment_position = 0;
   }
 
+  private static void applyShowComment(boolean show_comment) {
+    hide_comment = !show_comment;
+    comment_position = hide_comment ? COMMENT_RIGHT : config_comment_position;
+  }
+
+  /** 選項發佈或切換後重新套用註釋的顯示 */
+  public void setShowComment(boolean show_comment) {
+    if (hide_comment != show_comment) return;
+    applyShowComment(show_comment);
+    notifyDataSetChanged();
+  }
+
   public int updateCandidates() {
 
     candidates = Rime.getCandidatesWithoutSwitch();
@@ -74,15 +86,11 @@ public class CandidateAdapter extends RecyclerView.Adapter<RecyclerView.ViewHold
     textColor2 = config.getColor("hilited_candidate_text_color");
     commentColor = config.getColor("comment_text_color");
 
-    hide_comment = Rime.getOption("_hide_comment");
-    if (hide_comment) {
-      comment_position = COMMENT_RIGHT;
-    } else {
-      comment_position = config.getInt("comment_position");
-      if (comment_position == COMMENT_UNKNOW) {
-        comment_position = config.getBoolean("comment_on_top") ? COMMENT_TOP : COMMENT_RIGHT;
-      }
+    config_comment_position = config.getInt("comment_position");
+    if (config_comment_position == COMMENT_UNKNOW) {
+      config_comment_position = config.getBoolean("comment_on_top") ? COMMENT_TOP : COMMENT_RIGHT;
     }
+    applyShowComment(!Rime.getOption("_hide_comment"));
     textSize = config.getFloat("candidate_text_size");
     commentSize = config.getFloat("comment_text_size");
 
@@ -136,9 +144,10 @@ public class CandidateAdapter extends RecyclerView.Adapter<RecyclerView.ViewHold
       if (textFont != null) itemViewHold.textView.setTypeface(textFont);
       if (commentFont != null) itemViewHold.commentView.setTypeface(commentFont);
 
-      String text = candidates[index].text;
+      String text = candidates[index].getText();
       String comment = "";
-      if (!hide_comment && candidates[index].comment != null) comment = candidates[index].comment;
+      final String candidateComment = candidates[index].getComment();
+      if (!hide_comment && candidateComment != null) comment = candidateComment;
 
       if (text.length() > 300) itemViewHold.textView.setText(text.substring(0, 300));
       else itemViewHold.textView.setText(text);
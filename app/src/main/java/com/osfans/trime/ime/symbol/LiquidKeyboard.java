@@ -70,14 +70,14 @@ public class LiquidKeyboard {
 
   public void addClipboardData(String text) {
     DbBean bean = new DbBean(text);
-    ClipboardDao.get().add(bean);
+    ClipboardDao.get().add(bean, clipboard_max_size);
     clipboardBeanList.add(0, bean);
     if (mClipboardAdapter != null) mClipboardAdapter.notifyItemInserted(0);
   }
 
   public void addDraftData(String text) {
     DbBean bean = new DbBean(text);
-    DraftDao.get().add(bean);
+    DraftDao.get().add(bean, draft_max_size);
     draftBeanList.add(0, bean);
     if (mDraftAdapter != null) mDraftAdapter.notifyItemInserted(0);
   }
@@ -372,6 +372,10 @@ public class LiquidKeyboard {
         });
   }
 
+  public void setShowComment(boolean show_comment) {
+    if (candidateAdapter != null) candidateAdapter.setShowComment(show_comment);
+  }
+
   public void updateCandidates() {
     candidateAdapter.updateCandidates();
     candidateAdapter.notifyDataSetChanged();
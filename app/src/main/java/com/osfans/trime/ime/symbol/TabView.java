@@ -78,6 +78,7 @@ public class TabView extends View {
     candidateViewHeight = config.getPixel("candidate_view_height");
 
     candidateFont = config.getFont("candidate_font");
+    graphicUtils.reset(context);
 
     candidatePaint.setTextSize(candidateTextSize);
     candidatePaint.setTypeface(candidateFont);
@@ -36,6 +36,7 @@ import androidx.annotation.Nullable;
 import com.osfans.trime.core.Rime;
 import com.osfans.trime.data.AppPrefs;
 import com.osfans.trime.data.Config;
+import com.osfans.trime.data.Theme;
 import com.osfans.trime.ime.core.Trime;
 import com.osfans.trime.util.GraphicUtils;
 import java.lang.ref.WeakReference;
@@ -67,6 +68,8 @@ public class Candidate extends View {
       new ArrayList<>(MAX_CANDIDATE_COUNT);
   private int numCandidates;
   private int startNum = 0;
+  // 上次排版時的候選版本號和寬高，均未變化時跳過重新測量
+  private int layoutVersion = -1, layoutWidth, layoutHeight;
   private long timeDown = 0, timeMove = 0;
 
   private PaintDrawable candidateHighlight;
@@ -82,25 +85,27 @@ public class Candidate extends View {
 
   public void reset(Context context) {
     Config config = Config.get(context);
+    final Theme theme = config.getThemeModel();
     candidateHighlight = new PaintDrawable(config.getColor("hilited_candidate_back_color"));
     candidateHighlight.setCornerRadius(config.getFloat("layout/round_corner"));
     separatorPaint.setColor(config.getColor("candidate_separator_color"));
-    candidateSpacing = config.getPixel("candidate_spacing");
-    candidatePadding = config.getPixel("candidate_padding");
+    candidateSpacing = Config.getPixel(theme.getCandidateSpacing());
+    candidatePadding = Config.getPixel(theme.getCandidatePadding());
 
-    candidateTextColor = config.getColor("candidate_text_color");
-    commentTextColor = config.getColor("comment_text_color");
-    hilitedCandidateTextColor = config.getColor("hilited_candidate_text_color");
-    hilitedCommentTextColor = config.getColor("hilited_comment_text_color");
+    candidateTextColor = theme.getCandidateTextColor();
+    commentTextColor = theme.getCommentTextColor();
+    hilitedCandidateTextColor = theme.getHilitedCandidateTextColor();
+    hilitedCommentTextColor = theme.getHilitedCommentTextColor();
 
-    int candidate_text_size = config.getPixel("candidate_text_size");
-    int comment_text_size = config.getPixel("comment_text_size");
+    int candidate_text_size = Config.getPixel(theme.getCandidateTextSize());
+    int comment_text_size = Config.getPixel(theme.getCommentTextSize());
     candidateViewHeight = config.getPixel("candidate_view_height");
     commentHeight = config.getPixel("comment_height");
 
     candidateFont = config.getFont("candidate_font");
     commentFont = config.getFont("comment_font");
     symbolFont = config.getFont("symbol_font");
+    graphicUtils.reset(context);
 
     candidatePaint.setTextSize(candidate_text_size);
     candidatePaint.setTypeface(candidateFont);
@@ -111,10 +116,12 @@ public class Candidate extends View {
 
     isCommentOnTop = config.getBoolean("comment_on_top");
     candidateUseCursor = config.getBoolean("candidate_use_cursor");
+    layoutVersion = -1;
     invalidate();
   }
 
   public void setShowComment(boolean value) {
+    if (shouldShowComment != value) layoutVersion = -1;
     shouldShowComment = value;
   }
 
@@ -154,6 +161,14 @@ public class Candidate extends View {
    * @param start 候選的起始編號
    */
   public void setText(int start) {
+    final int version = Rime.getCandidatesVersion();
+    if (version == layoutVersion
+        && start == startNum
+        && expectWidth == layoutWidth
+        && getMeasuredHeight() == layoutHeight) return;
+    layoutVersion = version;
+    layoutWidth = expectWidth;
+    layoutHeight = getMeasuredHeight();
     startNum = start;
     removeHighlight();
     updateCandidateWidth();
@@ -313,12 +328,12 @@ public class Candidate extends View {
           break;
         }
       }
-      String comment = null, text = candidates[n].text;
+      String comment = null, text = candidates[n].getText();
       float candidateWidth =
           graphicUtils.measureText(candidatePaint, text, candidateFont) + 2 * candidatePadding;
 
       if (shouldShowComment) {
-        comment = candidates[n].comment;
+        comment = candidates[n].getComment();
         if (!TextUtils.isEmpty(comment)) {
           float commentWidth = graphicUtils.measureText(commentPaint, comment, commentFont);
           candidateWidth =
@@ -62,6 +62,9 @@ public class Composition extends AppCompatTextView {
   private int max_length, sticky_lines, sticky_lines_land;
   private int max_entries = Candidate.getMaxCandidateCount();
   private boolean candidate_use_cursor, show_comment;
+  // 上次生成悬浮窗文本时的版本号和参数，均未变化时直接复用
+  private int window_composition_version, window_candidates_version = -1;
+  private int window_min_length, window_min_check, window_start_num;
   private int highlightIndex;
   private List<Map<String, Object>> windows_comps;
   private SpannableStringBuilder ss;
@@ -134,7 +137,7 @@ public class Composition extends AppCompatTextView {
     @Override
     public void onClick(View tv) {
       textInputManager.onPress(event.getCode());
-      textInputManager.onEvent(event);
+      textInputManager.onEvent(event, null);
     }
 
     @Override
@@ -205,12 +208,14 @@ public class Composition extends AppCompatTextView {
   }
 
   public void setShowComment(boolean value) {
+    if (show_comment != value) window_candidates_version = -1;
     show_comment = value;
   }
 
   public void reset(Context context) {
     final Config config = Config.get(context);
     windows_comps = (List<Map<String, Object>>) config.getValue("window");
+    window_candidates_version = -1;
     if (config.hasKey("layout/max_entries")) max_entries = config.getInt("layout/max_entries");
     candidate_use_cursor = config.getBoolean("candidate_use_cursor");
     text_size = config.getPixel("text_size");
@@ -337,14 +342,14 @@ public class Composition extends AppCompatTextView {
     int j = min_check > max_entries ? (max_entries - 1) : (min_check - 1);
     if (j >= candidates.length) j = candidates.length - 1;
     for (; j >= 0; j--) {
-      final String cand = candidates[j].text;
+      final String cand = candidates[j].getText();
       if (cand.length() >= min_length) break;
     }
 
     if (j < 0) j = 0;
 
     for (; j < max_entries && j < candidates.length; j++) {
-      final String cand = candidates[j].text;
+      final String cand = candidates[j].getText();
       if (cand.length() < min_length) {
         return j;
       }
@@ -377,7 +382,7 @@ public class Composition extends AppCompatTextView {
     int i = -1;
     candidate_num = 0;
     for (Rime.RimeCandidate o : candidates) {
-      String cand = o.text;
+      String cand = o.getText();
       if (TextUtils.isEmpty(cand)) cand = "";
       i++;
       if (candidate_num >= max_entries) break;
@@ -433,7 +438,7 @@ public class Composition extends AppCompatTextView {
           end,
           span);
       ss.setSpan(new AbsoluteSizeSpan(candidate_text_size), start, end, span);
-      String comment = o.comment;
+      String comment = o.getComment();
       if (show_comment && !TextUtils.isEmpty(comment_format) && !TextUtils.isEmpty(comment)) {
         comment = String.format(comment_format, comment);
         start = ss.length();
@@ -466,9 +471,9 @@ public class Composition extends AppCompatTextView {
       if (when.contentEquals("has_menu") && !Rime.hasMenu()) return;
     }
     final String label;
-    final Event e = new Event(Config.getString(m, "click"));
+    final Event e = Event.obtain(Config.getString(m, "click"));
     if (m.containsKey("label")) label = Config.getString(m, "label");
-    else label = e.getLabel();
+    else label = e.getLabel(null);
     int start, end;
     String sep = null;
     if (m.containsKey("start")) sep = Config.getString(m, "start");
@@ -531,6 +536,21 @@ public class Composition extends AppCompatTextView {
    */
   public int setWindow(int stringMinLength, int candidateMinCheck) {
     if (getVisibility() != View.VISIBLE) return 0;
+    final int compositionVersion = Rime.getCompositionVersion();
+    final int candidatesVersion = Rime.getCandidatesVersion();
+    if (compositionVersion == window_composition_version
+        && candidatesVersion == window_candidates_version
+        && stringMinLength == window_min_length
+        && candidateMinCheck == window_min_check) return window_start_num;
+    window_composition_version = compositionVersion;
+    window_candidates_version = candidatesVersion;
+    window_min_length = stringMinLength;
+    window_min_check = candidateMinCheck;
+    window_start_num = buildWindow(stringMinLength, candidateMinCheck);
+    return window_start_num;
+  }
+
+  private int buildWindow(int stringMinLength, int candidateMinCheck) {
     StackTraceElement[] stacks = new Throwable().getStackTrace();
     Timber.d(
         "setWindow Rime.getComposition()"
@@ -6,6 +6,7 @@ import android.view.View
 import android.view.inputmethod.EditorInfo
 import android.view.inputmethod.InputMethodManager
 import com.osfans.trime.core.Rime
+import com.osfans.trime.core.RimeEngine
 import com.osfans.trime.data.AppPrefs
 import com.osfans.trime.data.Config
 import com.osfans.trime.databinding.InputRootBinding
@@ -16,6 +17,7 @@ import com.osfans.trime.ime.core.Trime
 import com.osfans.trime.ime.enums.Keycode
 import com.osfans.trime.ime.enums.SymbolKeyboardType
 import com.osfans.trime.ime.keyboard.Event
+import com.osfans.trime.ime.keyboard.Keyboard
 import com.osfans.trime.ime.keyboard.Keyboard.printModifierKeyState
 import com.osfans.trime.ime.keyboard.KeyboardSwitcher
 import com.osfans.trime.ime.keyboard.KeyboardView
@@ -60,7 +62,10 @@ class TextInputManager private constructor() :
 
     var locales: Array<Locale> = Array(2) { Locale.getDefault() }
 
+    @Volatile
     var needSendUpRimeKey: Boolean = false
+    // Written on the engine thread in onRelease() and read on the main thread
+    @Volatile
     var shouldUpdateRimeOption: Boolean = true
     var performEnterAsLineBreak: Boolean = false
     var isComposable: Boolean = false
@@ -271,7 +276,7 @@ class TextInputManager private constructor() :
             } else if (option.startsWith("_key_") && option.length > 5 && value) {
                 shouldUpdateRimeOption = false // 防止在 handleRimeNotification 中 setOption
                 val key = option.substring(5)
-                onEvent(Event(key))
+                onEvent(Event.obtain(key), null)
                 shouldUpdateRimeOption = true
             } else if (option.startsWith("_one_hand_mode")) {
                 /*
@@ -282,7 +287,25 @@ class TextInputManager private constructor() :
                 trime.initKeyboard() */
             }
         }
-        mainKeyboardView?.invalidateAllKeys()
+        mainKeyboardView?.invalidateChangedKeys()
+    }
+
+    /**
+     * Re-applies everything that depends on Rime options or properties, once [Rime] has published
+     * values that were read for the first time.
+     */
+    fun onOptionsPublished() {
+        val hideCandidate = Rime.getOption("_hide_candidate")
+        candidateRoot?.visibility = if (hideCandidate) View.GONE else View.VISIBLE
+        trime.setCandidatesViewShown(isComposable && !hideCandidate)
+        val hideComment = Rime.getOption("_hide_comment")
+        trime.setShowComment(!hideComment)
+        candidateView?.setShowComment(!hideComment)
+        mainKeyboardView?.let {
+            it.setShowHint(!Rime.getOption("_hide_key_hint"))
+            it.setShowSymbol(!Rime.getOption("_hide_key_symbol"))
+            it.invalidateAllKeys()
+        }
     }
 
     override fun onPress(keyEventCode: Int) {
@@ -298,7 +321,9 @@ class TextInputManager private constructor() :
             "\t<TrimeInput>\tonRelease() needSendUpRimeKey=" + needSendUpRimeKey + ", keyEventcode=" + keyEventCode +
                 ", Event.getRimeEvent=" + Event.getRimeEvent(keyEventCode, Rime.META_RELEASE_ON)
         )
-        if (needSendUpRimeKey) {
+        // 在引擎线程中判断，按下的按键此时已处理完毕
+        RimeEngine.post {
+            if (!needSendUpRimeKey) return@post
             if (shouldUpdateRimeOption) {
                 Rime.setOption("soft_cursors", prefs.keyboard.softCursorEnabled)
                 Rime.setOption("_horizontal", trime.imeConfig.getBoolean("horizontal"))
@@ -306,21 +331,26 @@ class TextInputManager private constructor() :
             }
             // todo 释放按键可能不对
             Rime.onKey(Event.getRimeEvent(keyEventCode, Rime.META_RELEASE_ON))
-            activeEditorInstance.commitRimeText()
+            val commit = if (Rime.getCommit()) Rime.getCommitText() else null
+            RimeEngine.postResult { activeEditorInstance.commitRimeText(commit) }
+            Timber.d("\t<TrimeInput>\tonRelease() finish")
         }
-        Timber.d("\t<TrimeInput>\tonRelease() finish")
     }
 
     // KeyboardEvent 处理软键盘事件
-    override fun onEvent(event: Event?) {
+    override fun onEvent(event: Event?) = onEvent(event, keyboardSwitcher.currentKeyboard)
+
+    /** Handles [event]; [keyboard] decides the letter case of its text, null for events from outside a keyboard. */
+    fun onEvent(event: Event?, keyboard: Keyboard?) {
         event ?: return
         if (!event.commit.isNullOrEmpty()) {
             // Directly commit the text and don't dispatch to Rime
             activeEditorInstance.commitText(event.commit, false)
             return
         }
-        if (!event.text.isNullOrEmpty()) {
-            onText(event.text)
+        val text = event.getText(keyboard)
+        if (!text.isNullOrEmpty()) {
+            onText(text)
             return
         }
         when (event.code) {
@@ -396,20 +426,31 @@ class TextInputManager private constructor() :
             }
             KeyEvent.KEYCODE_PROG_RED -> trime.showColorDialog() // Color schemes
             KeyEvent.KEYCODE_MENU -> trime.showOptionsDialog()
-            else -> onKey(event.code, event.mask or trime.keyboardSwitcher.currentKeyboard.modifer)
+            else -> {
+                val modifier = trime.keyboardSwitcher.currentKeyboard.modifer
+                // Without keyboard modifiers the event's own Rime key is already known
+                if (modifier == 0) {
+                    onKey(event.rimeEvent, event.code, event.mask)
+                } else {
+                    onKey(event.code, event.mask or modifier)
+                }
+            }
         }
     }
 
-    override fun onKey(keyEventCode: Int, metaState: Int) {
+    override fun onKey(keyEventCode: Int, metaState: Int) =
+        onKey(Event.getRimeEvent(keyEventCode, metaState), keyEventCode, metaState)
+
+    private fun onKey(rimeEvent: IntArray, keyEventCode: Int, metaState: Int) {
         printModifierKeyState(metaState, "keyEventCode=" + keyEventCode)
-        if (trime.handleKey(keyEventCode, metaState)) return
-        if (Keycode.hasSymbolLabel(keyEventCode)) {
-            needSendUpRimeKey = false
-            activeEditorInstance.commitText(Keycode.getSymbolLabell(Keycode.valueOf(keyEventCode)))
-            return
+        // Rime 未处理的按键 needSendUpRimeKey 已在引擎线程中置为 false
+        trime.handleKey(rimeEvent, keyEventCode, metaState) {
+            if (Keycode.hasSymbolLabel(keyEventCode)) {
+                activeEditorInstance.commitText(Keycode.getSymbolLabell(Keycode.valueOf(keyEventCode)))
+            } else {
+                activeEditorInstance.sendDownUpKeyEvent(keyEventCode, metaState)
+            }
         }
-        needSendUpRimeKey = false
-        activeEditorInstance.sendDownUpKeyEvent(keyEventCode, metaState)
     }
 
     override fun onText(text: CharSequence?) {
@@ -427,18 +468,19 @@ class TextInputManager private constructor() :
                 escapeTagMatcher.matches() -> {
                     target = escapeTagMatcher.group(1) ?: ""
                     Rime.onText(target)
-                    if (!activeEditorInstance.commitRimeText() && !Rime.isComposing()) {
-                        activeEditorInstance.commitText(target)
+                    activeEditorInstance.commitRimeText { committed ->
+                        if (!committed && !Rime.isComposing()) {
+                            activeEditorInstance.commitText(target)
+                        }
                     }
-                    trime.updateComposing()
                 }
                 propertyGroupMatcher.matches() -> {
                     target = propertyGroupMatcher.group(1) ?: ""
-                    onEvent(Event(target))
+                    onEvent(Event.obtain(target), null)
                 }
                 else -> {
                     target = textToParse.substring(0, 1)
-                    onEvent(Event(target))
+                    onEvent(Event.obtain(target), null)
                 }
             }
             textToParse = textToParse.substring(target.length)
@@ -4,23 +4,66 @@ import android.content.Context
 import android.graphics.Canvas
 import android.graphics.Paint
 import android.graphics.Typeface
+import android.util.LruCache
 import com.osfans.trime.data.Config
+import com.osfans.trime.data.Theme
 
 class GraphicUtils(
     context: Context
 ) {
     private var hanBFont: Typeface = Typeface.DEFAULT
     private var latinFont: Typeface = Typeface.DEFAULT
+    private var theme: Theme? = null
+
+    /**
+     * Measured text split into runs of the same typeface.
+     * [ends] holds the end offset of each run, [widths] its advance width.
+     */
+    private class TextLayout(
+        val ends: IntArray,
+        val typefaces: Array<Typeface>,
+        val widths: FloatArray,
+        val width: Float
+    )
+
+    /** Everything of the paint that affects the measured widths, besides the typeface runs. */
+    private data class LayoutKey(
+        val text: String,
+        val font: Typeface,
+        val textSize: Float,
+        val fakeBold: Boolean,
+        val letterSpacing: Float,
+        val textScaleX: Float
+    )
+
+    private val layoutCache = LruCache<LayoutKey, TextLayout>(LAYOUT_CACHE_SIZE)
 
     companion object {
         const val HAN_B_FONT = "hanb_font"
         const val LATIN_FONT = "latin_font"
+
+        private const val LAYOUT_CACHE_SIZE = 1024
     }
 
     init {
+        reset(context)
+    }
+
+    /**
+     * Resolves the fallback fonts of the current theme, call it after theme or font changes.
+     * Cached layouts are dropped only when the fallback fonts actually changed.
+     */
+    fun reset(context: Context) {
         val imeConfig = Config.get(context)
-        hanBFont = imeConfig.getFont(HAN_B_FONT)
-        latinFont = imeConfig.getFont(LATIN_FONT)
+        val current = imeConfig.themeModel
+        if (current === theme) return
+        theme = current
+        val hanB = imeConfig.getFont(HAN_B_FONT)
+        val latin = imeConfig.getFont(LATIN_FONT)
+        if (hanB == hanBFont && latin == latinFont) return
+        hanBFont = hanB
+        latinFont = latin
+        layoutCache.evictAll()
     }
 
     private fun determineTypeface(codePoint: Int, font: Typeface): Typeface {
@@ -31,48 +74,67 @@ class GraphicUtils(
         } else font
     }
 
-    fun Paint.measureText(text: String, font: Typeface): Float {
-        if (text.isEmpty()) return 0.0f
+    private fun Paint.layoutText(text: String, font: Typeface): TextLayout {
+        val key = LayoutKey(text, font, textSize, isFakeBoldText, letterSpacing, textScaleX)
+        layoutCache.get(key)?.let {
+            // Leave the paint as a fresh layout would
+            this.typeface = font
+            return it
+        }
+
+        val ends = ArrayList<Int>()
+        val typefaces = ArrayList<Typeface>()
         val codePoints = text.codePointCount(0, text.length)
-        var x = 0.0f
         if (latinFont != Typeface.DEFAULT ||
             (hanBFont != Typeface.DEFAULT && text.length > codePoints)
         ) {
             var offset = 0
             while (offset < text.length) {
                 val codePoint = text.codePointAt(offset)
-                val charCount = Character.charCount(codePoint)
-                this.typeface = determineTypeface(codePoint, font)
-                x += this.measureText(text, offset, offset + charCount)
-                offset += charCount
+                val typeface = determineTypeface(codePoint, font)
+                offset += Character.charCount(codePoint)
+                if (typefaces.isNotEmpty() && typefaces.last() == typeface) {
+                    ends[ends.size - 1] = offset
+                } else {
+                    ends.add(offset)
+                    typefaces.add(typeface)
+                }
             }
-            this.typeface = font
         } else {
-            this.typeface = font
-            x = this.measureText(text)
+            ends.add(text.length)
+            typefaces.add(font)
+        }
+
+        val widths = FloatArray(ends.size)
+        var start = 0
+        for (i in ends.indices) {
+            this.typeface = typefaces[i]
+            widths[i] = this.measureText(text, start, ends[i])
+            start = ends[i]
         }
-        return x
+        this.typeface = font
+
+        val layout = TextLayout(ends.toIntArray(), typefaces.toTypedArray(), widths, widths.sum())
+        layoutCache.put(key, layout)
+        return layout
+    }
+
+    fun Paint.measureText(text: String, font: Typeface): Float {
+        if (text.isEmpty()) return 0.0f
+        return layoutText(text, font).width
     }
 
     fun Canvas.drawText(text: String, centerX: Float, y: Float, paint: Paint, font: Typeface) {
         if (text.isEmpty()) return
-        val codePoints = text.codePointCount(0, text.length)
-        var x = centerX - paint.measureText(text, font) / 2
-        if (latinFont != Typeface.DEFAULT ||
-            (hanBFont != Typeface.DEFAULT && text.length > codePoints)
-        ) {
-            var offset = 0
-            while (offset < text.length) {
-                val codePoint = text.codePointAt(offset)
-                val charCount = Character.charCount(codePoint)
-                paint.typeface = determineTypeface(codePoint, font)
-                this.drawText(text, offset, offset + charCount, x, y, paint)
-                x += paint.measureText(text, offset, offset + charCount)
-                offset += charCount
-            }
-        } else {
-            paint.typeface = font
-            this.drawText(text, x, y, paint)
+        val layout = paint.layoutText(text, font)
+        var x = centerX - layout.width / 2
+        var start = 0
+        for (i in layout.ends.indices) {
+            paint.typeface = layout.typefaces[i]
+            this.drawText(text, start, layout.ends[i], x, y, paint)
+            x += layout.widths[i]
+            start = layout.ends[i]
         }
+        paint.typeface = font
     }
 }
@@ -4,8 +4,15 @@ import android.content.Context
 import com.blankj.utilcode.util.ToastUtils
 import com.osfans.trime.R
 import com.osfans.trime.core.Rime
+import com.osfans.trime.core.RimeEngine
+import com.osfans.trime.data.AppPrefs
+import com.osfans.trime.data.Config
+import com.osfans.trime.data.DeployFingerprints
+import com.osfans.trime.ime.core.Trime
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
+import timber.log.Timber
+import java.io.File
 import kotlin.system.exitProcess
 
 /**
@@ -18,19 +25,167 @@ object RimeUtils {
         exitProcess(0) // Clear the memory
     }
 
-    /** Deploy means reset Rime instance. **/
+    /**
+     * Deploy the changed sources. Only schemas, dictionaries and themes whose files changed since
+     * the last deploy are rebuilt, and the engine keeps running; anything else, or a missing
+     * record of the last deploy, falls back to resetting the Rime instance. With nothing changed
+     * the current schema and theme are still reloaded.
+     **/
     suspend fun deploy(context: Context) = withContext(Dispatchers.IO) {
-        Rime.destroy()
-        Rime.get(context, true)
+        val previous = DeployFingerprints.load()
+        val current = DeployFingerprints.scan()
+        val changed = previous?.let { current.changedSince(it) }
+        Timber.d("deploy() changed sources: %s", changed)
+        if (changed == null || !deployChanged(context, changed)) {
+            Rime.destroy()
+            Rime.get(context, true)
+        }
+        DeployFingerprints.save(current)
         ToastUtils.showLong(R.string.deploy_finish)
     }
 
-    /** Sync the user data.
+    /**
+     * Rebuilds the artifacts of [changed] source files in the running engine.
+     * @return `false` if a file affects more than its own schema or theme and needs a full deploy
+     **/
+    private fun deployChanged(context: Context, changed: Set<String>): Boolean {
+        val conf = AppPrefs.defaultInstance().conf
+        val schemaIds = schemaFiles(conf.sharedDataDir, conf.userDataDir).keys
+        val schemas = hashSetOf<String>()
+        val dictionaries = hashSetOf<String>()
+        val themes = hashSetOf<String>()
+        for (name in changed) {
+            // Files in subdirectories (Lua scripts, OpenCC configs) and plain texts (custom
+            // phrases, essays) may be used by any schema
+            if ('/' in name || !name.endsWith(".yaml")) return false
+            val base = name.removeSuffix(".yaml")
+            when {
+                base.endsWith(".schema") -> schemas.add(base.removeSuffix(".schema"))
+                base.endsWith(".dict") -> dictionaries.add(base.removeSuffix(".dict"))
+                base == "trime" || base.endsWith(".trime") -> themes.add(base)
+                base == "trime.custom" || base.endsWith(".trime.custom") -> themes.add(base.removeSuffix(".custom"))
+                base.endsWith(".custom") && base.removeSuffix(".custom") in schemaIds ->
+                    schemas.add(base.removeSuffix(".custom"))
+                else -> return false // default.yaml, symbols.yaml and the like are shared by every schema
+            }
+        }
+        Rime.get(context)
+        val importers =
+            if (dictionaries.isEmpty()) emptyMap() else dictionaryImporters(conf.sharedDataDir, conf.userDataDir)
+        val deployed = RimeEngine.call {
+            // A dictionary is rebuilt with the schemas that use it, directly or through the
+            // dictionaries that import it
+            for (dictionary in dictionaries) {
+                val affected = importedBy(dictionary, importers)
+                val users = schemaIds.filter { schemaDictionaries(it).any { d -> d in affected } }
+                if (users.isEmpty()) return@call false // not used by any known schema
+                schemas.addAll(users)
+            }
+            val files = schemaFiles(conf.sharedDataDir, conf.userDataDir)
+            for (schema in schemas) {
+                val file = files[schema] ?: continue
+                Timber.d("deploy() schema %s", file)
+                Rime.deploy_schema(file.absolutePath)
+            }
+            for (theme in themes) Rime.deployConfigFile("$theme.yaml")
+            Rime.clearConfigCache()
+            true
+        }
+        if (!deployed) return false
+        // A deploy asked for by the user reloads the session even if no source changed
+        if (changed.isEmpty() || Rime.getSchemaId() in schemas) Rime.reloadSchema()
+        if (changed.isEmpty() || themes.isNotEmpty()) {
+            RimeEngine.postResult {
+                val config = Config.get(context)
+                if (changed.isEmpty() || config.theme in themes) config.setTheme(config.theme)
+                Trime.getServiceOrNull()?.initKeyboard()
+            }
+        }
+        return true
+    }
+
+    /** Dictionary names referenced by `<name_space>/dictionary` in [schemaId]. */
+    private fun schemaDictionaries(schemaId: String): List<String> {
+        val root = Rime.getSchemaValue(schemaId, "") as? Map<*, *> ?: return emptyList()
+        return root.values.mapNotNull { ((it as? Map<*, *>)?.get("dictionary") as? String) }
+    }
+
+    /** [dictionary] and every dictionary that imports it, directly or not. */
+    private fun importedBy(dictionary: String, importers: Map<String, Set<String>>): Set<String> {
+        val affected = hashSetOf(dictionary)
+        val pending = ArrayDeque(listOf(dictionary))
+        while (pending.isNotEmpty()) {
+            importers[pending.removeFirst()]?.forEach { if (affected.add(it)) pending.addLast(it) }
+        }
+        return affected
+    }
+
+    /**
+     * The dictionaries importing each dictionary through `import_tables`, read from the headers
+     * of the dictionary sources; a dictionary in the user data directory overrides the shared one.
+     */
+    private fun dictionaryImporters(vararg dirs: String): Map<String, Set<String>> {
+        val imports = hashMapOf<String, List<String>>()
+        for (dir in dirs) {
+            File(dir).listFiles { f -> f.name.endsWith(".dict.yaml") }?.forEach {
+                imports[it.name.removeSuffix(".dict.yaml")] = importTables(it)
+            }
+        }
+        val importers = hashMapOf<String, MutableSet<String>>()
+        for ((dictionary, tables) in imports) {
+            for (table in tables) importers.getOrPut(table) { hashSetOf() }.add(dictionary)
+        }
+        return importers
+    }
+
+    /** The `import_tables` of a dictionary source, in block or flow style. */
+    private fun importTables(file: File): List<String> {
+        val tables = arrayListOf<String>()
+        runCatching {
+            file.useLines { lines ->
+                var inList = false
+                for (raw in lines) {
+                    val line = raw.substringBefore(" #").trimEnd()
+                    if (line == "...") break // end of the header
+                    val trimmed = line.trim()
+                    if (inList) {
+                        if (trimmed.startsWith("-")) {
+                            tables.add(trimmed.removePrefix("-").trim().trim('"', '\''))
+                            continue
+                        }
+                        if (trimmed.isEmpty() || trimmed.startsWith("#")) continue
+                        inList = false
+                    }
+                    if (trimmed.startsWith("import_tables:")) {
+                        val value = trimmed.removePrefix("import_tables:").trim()
+                        if (value.isEmpty()) {
+                            inList = true
+                        } else {
+                            value.removePrefix("[").removeSuffix("]").split(',')
+                                .map { it.trim().trim('"', '\'') }
+                                .filterTo(tables) { it.isNotEmpty() }
+                        }
+                    }
+                }
+            }
+        }.onFailure { Timber.w(it, "Failed to read %s", file) }
+        return tables
+    }
+
+    /** Schema files by id; a schema in the user data directory overrides the shared one. */
+    private fun schemaFiles(vararg dirs: String): Map<String, File> {
+        val files = hashMapOf<String, File>()
+        for (dir in dirs) {
+            File(dir).listFiles { f -> f.name.endsWith(".schema.yaml") }?.forEach {
+                files[it.name.removeSuffix(".schema.yaml")] = it
+            }
+        }
+        return files
+    }
+
+    /** Sync the user data on the engine thread, which also owns the pending options it flushes.
      * @return `true` if successfully **/
     suspend fun sync(context: Context): Boolean = withContext(Dispatchers.IO) {
-        Rime.sync_user_data().also {
-            Rime.destroy()
-            Rime.get(context, true)
-        }
+        Rime.syncUserData(context)
     }
 }
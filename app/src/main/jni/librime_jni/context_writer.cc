@@ -0,0 +1,36 @@
+#include "context_writer.h"
+
+void writeRimeContext(ContextWriter &writer, const RimeContext &context) {
+    writer.putInt(context.data_size);
+
+    writer.putInt(context.composition.length);
+    writer.putInt(context.composition.cursor_pos);
+    writer.putInt(context.composition.sel_start);
+    writer.putInt(context.composition.sel_end);
+    writer.putString(context.composition.preedit);
+
+    writer.putInt(context.menu.page_size);
+    writer.putInt(context.menu.page_no);
+    writer.putInt(context.menu.is_last_page ? 1 : 0);
+    writer.putInt(context.menu.highlighted_candidate_index);
+    int num = context.menu.num_candidates;
+    writer.putInt(num);
+    for (int i = 0; i < num; ++i) {
+        writer.putString(context.menu.candidates[i].text);
+        writer.putString(context.menu.candidates[i].comment);
+    }
+    writer.putString(context.menu.select_keys);
+
+    writer.putString(context.commit_text_preview);
+
+    if (RIME_STRUCT_HAS_MEMBER(context, context.select_labels)
+        && context.select_labels) {
+        int pageSize = context.menu.page_size;
+        writer.putInt(pageSize);
+        for (int i = 0; i < pageSize; ++i) {
+            writer.putString(context.select_labels[i]);
+        }
+    } else {
+        writer.putInt(-1);
+    }
+}
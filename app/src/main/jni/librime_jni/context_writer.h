@@ -0,0 +1,45 @@
+#ifndef TRIME_CONTEXT_WRITER_H
+#define TRIME_CONTEXT_WRITER_H
+
+#include <cstdint>
+#include <cstring>
+#include <rime_api.h>
+
+// 把 RimeContext 寫成緊湊的二進制快照，佈局見 Rime.RimeContext
+// 不依賴 JNI，主機端的回放工具也用它來複現 get_context 的開銷
+class ContextWriter {
+public:
+    ContextWriter(void *buffer, int64_t capacity)
+            : buffer_(static_cast<char *>(buffer)), capacity_(capacity) {}
+
+    void putInt(int32_t value) { put(&value, sizeof(value)); }
+
+    void putString(const char *value) {
+        if (!value) {
+            putInt(-1);
+            return;
+        }
+        auto length = static_cast<int32_t>(strlen(value));
+        putInt(length);
+        put(value, length);
+    }
+
+    // 超出容量時只累計長度，以便調用者擴大緩衝區後重試
+    int32_t size() const { return static_cast<int32_t>(size_); }
+
+private:
+    void put(const void *data, size_t length) {
+        if (buffer_ && size_ + static_cast<int64_t>(length) <= capacity_) {
+            memcpy(buffer_ + size_, data, length);
+        }
+        size_ += static_cast<int64_t>(length);
+    }
+
+    char *buffer_;
+    int64_t capacity_;
+    int64_t size_ = 0;
+};
+
+void writeRimeContext(ContextWriter &writer, const RimeContext &context);
+
+#endif //TRIME_CONTEXT_WRITER_H
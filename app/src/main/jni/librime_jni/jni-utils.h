@@ -25,24 +25,6 @@ public:
     jstring operator*() { return jstring_; }
 };
 
-class JClass {
-private:
-    JNIEnv *env_;
-    jclass jclass_;
-
-public:
-    JClass(JNIEnv *env, const char *name)
-            : env_(env), jclass_(env->FindClass(name)) {}
-
-    ~JClass() {
-        env_->DeleteLocalRef(jclass_);
-    }
-
-    operator jclass() { return jclass_; }
-
-    jclass operator*() { return jclass_; }
-};
-
 class JEnv {
 private:
     JNIEnv *env;
@@ -73,40 +55,24 @@ public:
     jclass Boolean;
     jmethodID BooleanInit;
 
-    jclass Rime;
-    jmethodID HandleRimeNotification;
+    jclass Double;
+    jmethodID DoubleInit;
+
+    jclass ArrayList;
+    jmethodID ArrayListInit;
+    jmethodID ArrayListAdd;
 
-    jclass RimeComposition;
-    jfieldID RimeCompositionLength;
-    jfieldID RimeCompositionCursorPos;
-    jfieldID RimeCompositionSelStart;
-    jfieldID RimeCompositionSelEnd;
-    jfieldID RimeCompositionPreedit;
+    jclass HashMap;
+    jmethodID HashMapInit;
+    jmethodID HashMapPut;
 
-    jclass RimeCandidate;
-    jfieldID RimeCandidateText;
-    jfieldID RimeCandidateComment;
+    jclass Rime;
+    jmethodID HandleRimeNotification;
 
     jclass RimeCommit;
     jfieldID RimeCommitDataSize;
     jfieldID RimeCommitText;
 
-    jclass RimeContext;
-    jfieldID RimeContextDataSize;
-    jfieldID RimeContextComposition;
-    jfieldID RimeContextMenu;
-    jfieldID RimeContextCommitTextPreview;
-    jfieldID RimeContextSelectLabels;
-
-    jclass RimeMenu;
-    jfieldID RimeMenuPageSize;
-    jfieldID RimeMenuPageNo;
-    jfieldID RimeMenuIsLastPage;
-    jfieldID RimeMenuHighlightedCandidateIndex;
-    jfieldID RimeMenuNumCandidates;
-    jfieldID RimeMenuCandidates;
-    jfieldID RimeMenuSelectKeys;
-
     jclass RimeStatus;
     jfieldID RimeStatusDataSize;
     jfieldID RimeStatusSchemaId;
@@ -133,40 +99,24 @@ public:
         Boolean = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("java/lang/Boolean")));
         BooleanInit = env->GetMethodID(Boolean, "<init>", "(Z)V");
 
-        Rime = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("com/osfans/trime/core/Rime")));
-        HandleRimeNotification = env->GetStaticMethodID(Rime, "handleRimeNotification", "(Ljava/lang/String;Ljava/lang/String;)V");
+        Double = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("java/lang/Double")));
+        DoubleInit = env->GetMethodID(Double, "<init>", "(D)V");
 
-        RimeComposition = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("com/osfans/trime/core/Rime$RimeComposition")));
-        RimeCompositionLength = env->GetFieldID(RimeComposition, "length", "I");
-        RimeCompositionCursorPos = env->GetFieldID(RimeComposition, "cursor_pos", "I");
-        RimeCompositionSelStart = env->GetFieldID(RimeComposition, "sel_start", "I");
-        RimeCompositionSelEnd = env->GetFieldID(RimeComposition, "sel_end", "I");
-        RimeCompositionPreedit = env->GetFieldID(RimeComposition, "preedit", "Ljava/lang/String;");
+        ArrayList = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("java/util/ArrayList")));
+        ArrayListInit = env->GetMethodID(ArrayList, "<init>", "()V");
+        ArrayListAdd = env->GetMethodID(ArrayList, "add", "(Ljava/lang/Object;)Z");
 
-        RimeCandidate = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("com/osfans/trime/core/Rime$RimeCandidate")));
-        RimeCandidateText = env->GetFieldID(RimeCandidate, "text", "Ljava/lang/String;");
-        RimeCandidateComment = env->GetFieldID(RimeCandidate, "comment", "Ljava/lang/String;");
+        HashMap = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("java/util/HashMap")));
+        HashMapInit = env->GetMethodID(HashMap, "<init>", "()V");
+        HashMapPut = env->GetMethodID(HashMap, "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+
+        Rime = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("com/osfans/trime/core/Rime")));
+        HandleRimeNotification = env->GetStaticMethodID(Rime, "handleRimeNotification", "(Ljava/lang/String;Ljava/lang/String;)V");
 
         RimeCommit = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("com/osfans/trime/core/Rime$RimeCommit")));
         RimeCommitDataSize = env->GetFieldID(RimeCommit, "data_size", "I");
         RimeCommitText = env->GetFieldID(RimeCommit, "text", "Ljava/lang/String;");
 
-        RimeContext = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("com/osfans/trime/core/Rime$RimeContext")));
-        RimeContextDataSize = env->GetFieldID(RimeContext, "data_size", "I");
-        RimeContextComposition = env->GetFieldID(RimeContext, "composition", "Lcom/osfans/trime/core/Rime$RimeComposition;");
-        RimeContextMenu = env->GetFieldID(RimeContext, "menu", "Lcom/osfans/trime/core/Rime$RimeMenu;");
-        RimeContextCommitTextPreview = env->GetFieldID(RimeContext, "commit_text_preview", "Ljava/lang/String;");
-        RimeContextSelectLabels = env->GetFieldID(RimeContext, "select_labels", "[Ljava/lang/String;");
-
-        RimeMenu = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("com/osfans/trime/core/Rime$RimeMenu")));
-        RimeMenuPageSize = env->GetFieldID(RimeMenu, "page_size", "I");
-        RimeMenuPageNo = env->GetFieldID(RimeMenu, "page_no", "I");
-        RimeMenuIsLastPage = env->GetFieldID(RimeMenu, "is_last_page", "Z");
-        RimeMenuHighlightedCandidateIndex = env->GetFieldID(RimeMenu, "highlighted_candidate_index", "I");
-        RimeMenuNumCandidates = env->GetFieldID(RimeMenu, "num_candidates", "I");
-        RimeMenuCandidates = env->GetFieldID(RimeMenu, "candidates", "[Lcom/osfans/trime/core/Rime$RimeCandidate;");
-        RimeMenuSelectKeys = env->GetFieldID(RimeMenu, "select_keys", "Ljava/lang/String;");
-
         RimeStatus = reinterpret_cast<jclass>(env->NewGlobalRef(env->FindClass("com/osfans/trime/core/Rime$RimeStatus")));
         RimeStatusDataSize = env->GetFieldID(RimeStatus, "data_size", "I");
         RimeStatusSchemaId = env->GetFieldID(RimeStatus, "schema_id", "Ljava/lang/String;");
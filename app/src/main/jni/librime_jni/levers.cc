@@ -78,25 +78,17 @@ Java_com_osfans_trime_core_Rime_customize_1string(JNIEnv *env, jclass /* thiz */
 
 jobject rimeSchemaListToJObject(JNIEnv *env, RimeSchemaList* list) {
   if (list == nullptr) return nullptr;
-  jclass ArrayList = env->FindClass("java/util/ArrayList");
-  jmethodID ArrayListInit = env->GetMethodID(ArrayList, "<init>", "()V");
-  jmethodID add = env->GetMethodID(ArrayList, "add", "(Ljava/lang/Object;)Z");
-  jobject schema_list = env->NewObject(ArrayList, ArrayListInit);
-  
-  jclass HashMap = env->FindClass("java/util/HashMap");
-  jmethodID HashMapInit = env->GetMethodID(HashMap, "<init>", "()V");
-  jmethodID HashMapPut = env->GetMethodID(HashMap, "put",
-            "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+  jobject schema_list = env->NewObject(GlobalRef->ArrayList, GlobalRef->ArrayListInit);
   size_t n = list->size;
   if (n > 0) {
     for (int i = 0; i < n; i++) {
-      jobject schema_item = env->NewObject(HashMap, HashMapInit);
+      jobject schema_item = env->NewObject(GlobalRef->HashMap, GlobalRef->HashMapInit);
       RimeSchemaListItem& item(list->list[i]);
-      env->CallObjectMethod(schema_item, HashMapPut,
+      env->CallObjectMethod(schema_item, GlobalRef->HashMapPut,
                             *JString(env, "schema_id"),
                             *JString(env, item.schema_id));
       if (item.name) {
-        env->CallObjectMethod(schema_item, HashMapPut,
+        env->CallObjectMethod(schema_item, GlobalRef->HashMapPut,
                               *JString(env, "name"),
                               *JString(env, item.name));
       }
@@ -114,12 +106,10 @@ jobject rimeSchemaListToJObject(JNIEnv *env, RimeSchemaList* list) {
         env->CallObjectMethod(schema_item, put, key, value);
       } */
 
-      env->CallBooleanMethod(schema_list, add, schema_item);
+      env->CallBooleanMethod(schema_list, GlobalRef->ArrayListAdd, schema_item);
       env->DeleteLocalRef(schema_item);
     }
   }
-  env->DeleteLocalRef(HashMap);
-  env->DeleteLocalRef(ArrayList);
   return schema_list;
 }
 
@@ -1,4 +1,8 @@
+#include <list>
+#include <memory>
+#include <mutex>
 #include <string>
+#include <utility>
 #include <opencc/Common.hpp>
 #include <opencc/SimpleConverter.hpp>
 #include <opencc/DictConverter.hpp>
@@ -8,6 +12,26 @@ using std::string;
 
 // opencc
 
+// 轉換器按配置路徑緩存，避免每次轉換都重新解析配置和加載詞典
+static const size_t kMaxCachedConverters = 8;
+static std::mutex converters_mutex;
+// 最近使用的在前
+static std::list<std::pair<string, std::shared_ptr<SimpleConverter>>> converters;
+
+static std::shared_ptr<SimpleConverter> get_converter(const string &config) {
+  std::lock_guard<std::mutex> lock(converters_mutex);
+  for (auto it = converters.begin(); it != converters.end(); ++it) {
+    if (it->first == config) {
+      converters.splice(converters.begin(), converters, it);
+      return it->second;
+    }
+  }
+  auto converter = std::make_shared<SimpleConverter>(config);
+  converters.emplace_front(config, converter);
+  if (converters.size() > kMaxCachedConverters) converters.pop_back();
+  return converter;
+}
+
 extern "C"
 JNIEXPORT jstring JNICALL
 Java_com_osfans_trime_core_Rime_get_1opencc_1version(JNIEnv *env, jclass thiz) {
@@ -20,10 +44,16 @@ Java_com_osfans_trime_core_Rime_opencc_1convert(JNIEnv *env, jclass thiz, jstrin
   if (name == NULL) return line;
   const char* s = env->GetStringUTFChars(name, NULL);
   string str(s);
-  SimpleConverter converter(str);
   env->ReleaseStringUTFChars(name, s);
+  std::shared_ptr<SimpleConverter> converter;
+  try {
+    converter = get_converter(str);
+  } catch (const std::exception &e) {
+    ALOGE("opencc_convert: %s", e.what());
+    return line;
+  }
   const char* input = env->GetStringUTFChars(line, NULL);
-  const string& converted = converter.Convert(input);
+  const string& converted = converter->Convert(input);
   env->ReleaseStringUTFChars(line, input);
   s = converted.c_str();
   return env->NewStringUTF(s);
@@ -68,3 +98,10 @@ Java_com_osfans_trime_data_opencc_OpenCCDictManager_openccDictConv(JNIEnv *env,
   env->ReleaseStringUTFChars(src, src_file);
   env->ReleaseStringUTFChars(dest, dest_file);
 }
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_osfans_trime_core_Rime_opencc_1clear_1cache(JNIEnv *env, jclass thiz) {
+  std::lock_guard<std::mutex> lock(converters_mutex);
+  converters.clear();
+}
@@ -1,5 +1,13 @@
 #include "rime_jni.h"
 #include "levers.h"
+#include "context_writer.h"
+#include <rime/config.h>
+#include <rime/engine.h>
+#include <rime/schema.h>
+#include <rime/service.h>
+#include <cstdlib>
+#include <map>
+#include <unordered_set>
 
 extern void rime_require_module_lua();
 extern void rime_require_module_charcode();
@@ -11,6 +19,8 @@ static void declare_librime_module_dependencies() {
     rime_require_module_octagram();
 }
 
+GlobalRefSingleton *GlobalRef;
+
 JNIEXPORT jint JNICALL
 JNI_OnLoad(JavaVM* jvm, void* reserved)
 {
@@ -20,6 +30,8 @@ JNI_OnLoad(JavaVM* jvm, void* reserved)
 }
 
 static jobject rimeConfigValueToJObject(JNIEnv *env, RimeConfig* config, const char* key);
+static void reset_save_options();
+static void flush_options();
 static RimeSessionId activated_session_id = 0;
 
 extern "C"
@@ -58,6 +70,7 @@ Java_com_osfans_trime_core_Rime_setup(JNIEnv *env, jclass clazz, jstring shared_
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_osfans_trime_core_Rime_initialize(JNIEnv *env, jclass /* thiz */, jstring shared_data_dir, jstring user_data_dir) {
+    reset_save_options();
     init_traits(env, shared_data_dir, user_data_dir, RimeInitialize);
 }
 
@@ -65,12 +78,15 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_com_osfans_trime_core_Rime_finalize1(JNIEnv *env, jclass /* thiz */) {
     ALOGI("finalize...");
+    flush_options();
+    reset_save_options();
     RimeFinalize();
 }
 
 extern "C"
 JNIEXPORT jboolean JNICALL
 Java_com_osfans_trime_core_Rime_start_1maintenance(JNIEnv *env, jclass /* thiz */, jboolean full_check) {
+    reset_save_options();
     return RimeStartMaintenance((Bool)full_check);
 }
 
@@ -102,6 +118,7 @@ Java_com_osfans_trime_core_Rime_prebuild(JNIEnv *env, jclass /* thiz */) {
 extern "C"
 JNIEXPORT jboolean JNICALL
 Java_com_osfans_trime_core_Rime_deploy(JNIEnv *env, jclass /* thiz */) {
+    reset_save_options();
     return RimeDeployWorkspace();
 }
 
@@ -129,6 +146,7 @@ extern "C"
 JNIEXPORT jboolean JNICALL
 Java_com_osfans_trime_core_Rime_sync_1user_1data(JNIEnv *env, jclass /* thiz */) {
     ALOGI("sync user data...");
+    flush_options();
     return RimeSyncUserData();
 }
 
@@ -203,75 +221,18 @@ Java_com_osfans_trime_core_Rime_get_1commit(JNIEnv *env, jclass /* thiz */, jobj
     return r;
 }
 
-void rimeContextToJObject(JNIEnv *env, const RimeContext &context, const jobject &jcontext) {
-    env->SetIntField(jcontext, GlobalRef->RimeContextDataSize, context.data_size);
-    {
-        auto composition = env->AllocObject(GlobalRef->RimeComposition);
-        env->SetIntField(composition, GlobalRef->RimeCompositionLength, context.composition.length);
-        env->SetIntField(composition, GlobalRef->RimeCompositionCursorPos,
-                         context.composition.cursor_pos);
-        env->SetIntField(composition, GlobalRef->RimeCompositionSelStart,
-                         context.composition.sel_start);
-        env->SetIntField(composition, GlobalRef->RimeCompositionSelEnd,
-                         context.composition.sel_end);
-        env->SetObjectField(composition, GlobalRef->RimeCompositionPreedit,
-                            JString(env, context.composition.preedit));
-        env->SetObjectField(jcontext, GlobalRef->RimeContextComposition, composition);
-    }
-    {
-        auto menu = env->AllocObject(GlobalRef->RimeMenu);
-        env->SetIntField(menu, GlobalRef->RimeMenuPageSize, context.menu.page_size);
-        env->SetIntField(menu, GlobalRef->RimeMenuPageNo, context.menu.page_no);
-        env->SetBooleanField(menu, GlobalRef->RimeMenuIsLastPage, context.menu.is_last_page);
-        env->SetIntField(menu, GlobalRef->RimeMenuHighlightedCandidateIndex,
-                         context.menu.highlighted_candidate_index);
-        env->SetIntField(menu, GlobalRef->RimeMenuNumCandidates, context.menu.num_candidates);
-        {
-            int num = context.menu.num_candidates;
-            auto candidates = env->NewObjectArray(num, GlobalRef->RimeCandidate, nullptr);
-            for (int i = 0; i < num; ++i) {
-                auto candidate = env->AllocObject(GlobalRef->RimeCandidate);
-                env->SetObjectField(candidate, GlobalRef->RimeCandidateText,
-                                    JString(env, context.menu.candidates[i].text));
-                env->SetObjectField(candidate, GlobalRef->RimeCandidateComment,
-                                    JString(env, context.menu.candidates[i].comment));
-                env->SetObjectArrayElement(candidates, i, candidate);
-                env->DeleteLocalRef(candidate);
-            }
-            env->SetObjectField(menu, GlobalRef->RimeMenuCandidates, candidates);
-        }
-            env->SetObjectField(menu, GlobalRef->RimeMenuSelectKeys,
-                                JString(env, context.menu.select_keys));
-            env->SetObjectField(jcontext, GlobalRef->RimeContextMenu, menu);
-    }
-    env->SetObjectField(jcontext, GlobalRef->RimeContextCommitTextPreview, JString(env, context.commit_text_preview));
-
-    {
-        if (RIME_STRUCT_HAS_MEMBER(context, context.select_labels)
-            && context.select_labels) {
-            int pageSize = context.menu.page_size;
-            auto selectLabels = env->NewObjectArray(pageSize, GlobalRef->String, nullptr);
-            for (int i = 0; i < pageSize; ++i) {
-                env->SetObjectArrayElement(selectLabels, i,
-                                           JString(env, context.select_labels[i]));
-            }
-            env->SetObjectField(jcontext, GlobalRef->RimeContextSelectLabels, selectLabels);
-        } else {
-            env->SetObjectField(jcontext, GlobalRef->RimeContextSelectLabels, nullptr);
-        }
-    }
-}
-
 extern "C"
-JNIEXPORT jboolean JNICALL
-Java_com_osfans_trime_core_Rime_get_1context(JNIEnv *env, jclass /* thiz */, jobject jcontext) {
+JNIEXPORT jint JNICALL
+Java_com_osfans_trime_core_Rime_get_1context(JNIEnv *env, jclass /* thiz */, jobject jbuffer) {
+    void *buffer = env->GetDirectBufferAddress(jbuffer);
+    jlong capacity = env->GetDirectBufferCapacity(jbuffer);
+    if (!buffer || capacity < 0) return -1;
     RIME_STRUCT(RimeContext, context);
-    Bool r = RimeGetContext(activated_session_id, &context);
-    if (r) {
-        rimeContextToJObject(env, context, jcontext);
-        RimeFreeContext(&context);
-    }
-    return r;
+    if (!RimeGetContext(activated_session_id, &context)) return -1;
+    ContextWriter writer(buffer, capacity);
+    writeRimeContext(writer, context);
+    RimeFreeContext(&context);
+    return writer.size();
 }
 
 void rimeStatusToJObject(JNIEnv *env, const RimeStatus &status, const jobject &jstatus) {
@@ -299,26 +260,53 @@ Java_com_osfans_trime_core_Rime_get_1status(JNIEnv *env, jclass /* thiz */, jobj
     return r;
 }
 
-static bool is_save_option(const char* p) {
-    bool is_save = false;
-    std::string option_name(p);
-    if (option_name.empty()) return is_save;
+// switcher/save_options 在部署後首次切換選項時讀取一次
+static std::unordered_set<std::string> save_options;
+static bool save_options_loaded = false;
+// 待寫入 user.yaml 的選項，由 flush_options 批量保存
+static std::map<std::string, bool> pending_options;
+
+static void load_save_options() {
+    save_options.clear();
+    save_options_loaded = true;
     RimeConfig config = {nullptr};
-    bool b = RimeConfigOpen("default", &config);
-    if (!b) return is_save;
-    const char *key = "switcher/save_options";
+    if (!RimeConfigOpen("default", &config)) return;
     RimeConfigIterator iter = {nullptr};
-    RimeConfigBeginList(&iter, &config, key);
-    while(RimeConfigNext(&iter)) {
-        std::string item(RimeConfigGetCString(&config, iter.path));
-        if (option_name == item) {
-            is_save = true;
-            break;
+    if (RimeConfigBeginList(&iter, &config, "switcher/save_options")) {
+        while (RimeConfigNext(&iter)) {
+            const char *item = RimeConfigGetCString(&config, iter.path);
+            if (item) save_options.insert(item);
         }
+        RimeConfigEnd(&iter);
     }
-    RimeConfigEnd(&iter);
     RimeConfigClose(&config);
-    return is_save;
+}
+
+// 部署或重新初始化後，save_options 可能已變化
+static void reset_save_options() {
+    save_options.clear();
+    save_options_loaded = false;
+}
+
+static bool is_save_option(const std::string &option_name) {
+    if (option_name.empty()) return false;
+    if (!save_options_loaded) load_save_options();
+    return save_options.count(option_name) > 0;
+}
+
+// 一次打開 user.yaml 寫入全部待保存的選項，關閉時落盤
+static void flush_options() {
+    if (pending_options.empty()) return;
+    RimeConfig config = {nullptr};
+    if (RimeUserConfigOpen("user", &config)) {
+        for (const auto &option : pending_options) {
+            std::string key("var/option/");
+            key += option.first;
+            RimeConfigSetBool(&config, key.c_str(), option.second);
+        }
+        RimeConfigClose(&config);
+    }
+    pending_options.clear();
 }
 
 // runtime options
@@ -326,22 +314,19 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_com_osfans_trime_core_Rime_set_1option(JNIEnv *env, jclass /* thiz */, jstring option, jboolean value) {
     const char* s = option == nullptr ? nullptr : env->GetStringUTFChars(option, nullptr);
+    if (!s) return;
     std::string option_name(s);
-    RimeConfig config = {nullptr};
-    bool b;
-    if (is_save_option(s)) {
-        b = RimeUserConfigOpen("user", &config);
-        if (b) {
-            std::string str("var/option/");
-            str += option_name;
-            b = RimeConfigSetBool(&config, str.c_str(), value);
-        }
-        RimeConfigClose(&config);
-    }
+    if (is_save_option(option_name)) pending_options[option_name] = value;
     RimeSetOption(activated_session_id, s, value);
     env->ReleaseStringUTFChars(option, s);
 }
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_osfans_trime_core_Rime_flush_1options(JNIEnv *env, jclass /* thiz */) {
+    flush_options();
+}
+
 extern "C"
 JNIEXPORT jboolean JNICALL
 Java_com_osfans_trime_core_Rime_get_1option(JNIEnv *env, jclass /* thiz */, jstring option) {
@@ -390,10 +375,7 @@ Java_com_osfans_trime_core_Rime_get_1current_1schema(JNIEnv *env, jclass /* thiz
     return nullptr;
 }
 
-extern "C"
-JNIEXPORT jboolean JNICALL
-Java_com_osfans_trime_core_Rime_select_1schema(JNIEnv *env, jclass /* thiz */, jstring schema_id) {
-    const char* s = schema_id == nullptr ? nullptr : env->GetStringUTFChars(schema_id, nullptr);
+static bool select_schema(const char* s) {
     RimeConfig config = {nullptr};
     Bool b = RimeUserConfigOpen("user", &config);
     if (b) {
@@ -403,11 +385,76 @@ Java_com_osfans_trime_core_Rime_select_1schema(JNIEnv *env, jclass /* thiz */, j
         b = RimeConfigSetInt(&config, str.c_str(), time(nullptr));
     }
     RimeConfigClose(&config);
-    bool value = RimeSelectSchema(activated_session_id, s);
+    return RimeSelectSchema(activated_session_id, s);
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_osfans_trime_core_Rime_select_1schema(JNIEnv *env, jclass /* thiz */, jstring schema_id) {
+    const char* s = schema_id == nullptr ? nullptr : env->GetStringUTFChars(schema_id, nullptr);
+    bool value = select_schema(s);
     env->ReleaseStringUTFChars(schema_id, s);
     return value;
 }
 
+// 只在會話的方案對象上覆蓋設置，不改動 librime 緩存的方案配置。
+// 緩存的配置一經 RimeConfigSet* 修改就會在銷毀時寫回 build 中的方案文件，
+// 可能覆蓋隨後 deploy_schema 重新生成的文件。覆蓋隨方案對象重建而失效，方案每次變化都要重新覆蓋。
+// 目前只支持 menu/page_size。
+static void patch_session_schema(const char* key, const char* value) {
+    rime::an<rime::Session> session = rime::Service::instance().GetSession(activated_session_id);
+    rime::Schema* schema = session ? session->schema() : nullptr;
+    if (!schema) return;
+    if (strcmp(key, "menu/page_size") == 0) {
+        int page_size = atoi(value);
+        if (page_size > 0) schema->set_page_size(page_size);
+    } else {
+        ALOGE("unsupported schema patch: %s", key);
+    }
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_osfans_trime_core_Rime_patch_1schema(JNIEnv *env, jclass /* thiz */, jobjectArray keys,
+                                            jobjectArray values) {
+    jsize n = env->GetArrayLength(keys);
+    if (env->GetArrayLength(values) < n) n = env->GetArrayLength(values);
+    for (jsize i = 0; i < n; i++) {
+        auto key = (jstring) env->GetObjectArrayElement(keys, i);
+        auto patch = (jstring) env->GetObjectArrayElement(values, i);
+        const char* k = env->GetStringUTFChars(key, nullptr);
+        const char* v = env->GetStringUTFChars(patch, nullptr);
+        patch_session_schema(k, v);
+        env->ReleaseStringUTFChars(key, k);
+        env->ReleaseStringUTFChars(patch, v);
+        env->DeleteLocalRef(key);
+        env->DeleteLocalRef(patch);
+    }
+}
+
+// 從重新生成的方案文件構造方案，套用到當前會話。
+// 舊方案仍持有 librime 緩存中的配置，按 ID 重新選擇只會讀到舊數據，故不經緩存直接讀文件，
+// 也不必先切換到其他方案釋放緩存。套用後 librime 照常發出 schema 通知。
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_osfans_trime_core_Rime_reload_1schema(JNIEnv *env, jclass /* thiz */, jstring schema_id,
+                                             jstring file) {
+    rime::an<rime::Session> session = rime::Service::instance().GetSession(activated_session_id);
+    if (!session || !session->engine()) return false;
+    const char* f = env->GetStringUTFChars(file, nullptr);
+    auto config = new rime::Config;
+    bool loaded = config->LoadFromFile(f);
+    env->ReleaseStringUTFChars(file, f);
+    if (!loaded) {
+        delete config;
+        return false;
+    }
+    const char* s = env->GetStringUTFChars(schema_id, nullptr);
+    session->engine()->ApplySchema(new rime::Schema(s, config));
+    env->ReleaseStringUTFChars(schema_id, s);
+    return true;
+}
+
 // configuration
 extern "C"
 JNIEXPORT jobject JNICALL
@@ -424,11 +471,7 @@ Java_com_osfans_trime_core_Rime_config_1get_1bool(JNIEnv *env, jclass /* thiz */
     }
     RimeConfigClose(&config);
     if (!b) return nullptr;
-    jclass jc = env->FindClass("java/lang/Boolean");
-    jmethodID ctorID = env->GetMethodID(jc, "<init>", "(Z)V");
-    auto ret = env->NewObject(jc, ctorID, value);
-    env->DeleteLocalRef(jc);
-    return ret;
+    return env->NewObject(GlobalRef->Boolean, GlobalRef->BooleanInit, value);
 }
 
 extern "C"
@@ -462,11 +505,7 @@ Java_com_osfans_trime_core_Rime_config_1get_1int(JNIEnv *env, jclass /* thiz */,
     }
     RimeConfigClose(&config);
     if (!b) return nullptr;
-    jclass jc = env->FindClass("java/lang/Integer");
-    jmethodID ctorID = env->GetMethodID(jc, "<init>", "(I)V");
-    auto ret = env->NewObject(jc, ctorID, value);
-    env->DeleteLocalRef(jc);
-    return ret;
+    return env->NewObject(GlobalRef->Integer, GlobalRef->IntegerInit, value);
 }
 
 extern "C"
@@ -500,11 +539,7 @@ Java_com_osfans_trime_core_Rime_config_1get_1double(JNIEnv *env, jclass /* thiz
     }
     RimeConfigClose(&config);
     if (!b) return nullptr;
-    jclass jc = env->FindClass("java/lang/Double");
-    jmethodID ctorID = env->GetMethodID(jc, "<init>", "(D)V");
-    auto ret = env->NewObject(jc, ctorID, value);
-    env->DeleteLocalRef(jc);
-    return ret;
+    return env->NewObject(GlobalRef->Double, GlobalRef->DoubleInit, value);
 }
 
 extern "C"
@@ -649,10 +684,9 @@ Java_com_osfans_trime_core_Rime_get_1librime_1version(JNIEnv *env, jclass /* thi
 
 jobjectArray get_string_list(JNIEnv *env, RimeConfig* config, const char* key) {
     jobjectArray jobj = nullptr;
-    jclass jc = env->FindClass("java/lang/String");
     int n = RimeConfigListSize(config, key);
     if (n > 0) {
-        jobj = (jobjectArray) env->NewObjectArray(n, jc, nullptr);
+        jobj = (jobjectArray) env->NewObjectArray(n, GlobalRef->String, nullptr);
         RimeConfigIterator iter = {nullptr};
         RimeConfigBeginList(&iter, config, key);
         int i = 0;
@@ -661,7 +695,6 @@ jobjectArray get_string_list(JNIEnv *env, RimeConfig* config, const char* key) {
         }
         RimeConfigEnd(&iter);
     }
-    env->DeleteLocalRef(jc);
     return jobj;
 }
 
@@ -669,17 +702,13 @@ static jobject rimeConfigListToJObject(JNIEnv *env, RimeConfig* config, const ch
     RimeConfigIterator iter = {nullptr};
     bool b = RimeConfigBeginList(&iter, config, key);
     if (!b) return nullptr;
-    jclass ArrayList = env->FindClass("java/util/ArrayList");
-    jmethodID ArrayListInit = env->GetMethodID(ArrayList, "<init>", "()V");
-    jmethodID ArrayListAdd = env->GetMethodID(ArrayList, "add", "(Ljava/lang/Object;)Z");
-    jobject jobj = env->NewObject(ArrayList, ArrayListInit);
+    jobject jobj = env->NewObject(GlobalRef->ArrayList, GlobalRef->ArrayListInit);
     while (RimeConfigNext(&iter)) {
         jobject o = rimeConfigValueToJObject(env, config, iter.path);
-        env->CallBooleanMethod(jobj, ArrayListAdd, o);
+        env->CallBooleanMethod(jobj, GlobalRef->ArrayListAdd, o);
         env->DeleteLocalRef(o);
     }
     RimeConfigEnd(&iter);
-    env->DeleteLocalRef(ArrayList);
     return jobj;
 }
 
@@ -704,20 +733,15 @@ static jobject rimeConfigMapToJObject(JNIEnv *env, RimeConfig* config, const cha
     RimeConfigIterator iter = {nullptr};
     bool b = RimeConfigBeginMap(&iter, config, key);
     if (!b) return nullptr;
-    jclass HashMap = env->FindClass("java/util/HashMap");
-    jmethodID HashMapInit = env->GetMethodID(HashMap, "<init>", "()V");
-    jmethodID HashMapPut = env->GetMethodID(HashMap, "put",
-                                     "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
-    jobject jobj = env->NewObject(HashMap, HashMapInit);
+    jobject jobj = env->NewObject(GlobalRef->HashMap, GlobalRef->HashMapInit);
     while (RimeConfigNext(&iter)) {
         jstring s = env->NewStringUTF(iter.key);
         jobject o = rimeConfigValueToJObject(env, config, iter.path);
-        env->CallObjectMethod(jobj, HashMapPut, s, o);
+        env->CallObjectMethod(jobj, GlobalRef->HashMapPut, s, o);
         env->DeleteLocalRef(s);
         env->DeleteLocalRef(o);
     }
     RimeConfigEnd(&iter);
-    env->DeleteLocalRef(HashMap);
     return jobj;
 }
 
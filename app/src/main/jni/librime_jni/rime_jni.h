@@ -9,7 +9,7 @@
 #include <rime_levers_api.h>
 #include "jni-utils.h"
 
-static GlobalRefSingleton *GlobalRef;
+extern GlobalRefSingleton *GlobalRef;
 
 #define TAG "Rime-JNI"
 #ifdef ANDROID
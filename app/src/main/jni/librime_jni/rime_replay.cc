@@ -0,0 +1,306 @@
+// 主機端按鍵回放工具：按 Rime.onKey 的調用順序重放按鍵序列，統計每鍵延遲、內存分配次數與讀盤量
+//
+// usage: rime_replay [options] <key_sequences_file>
+//   --shared-data <dir>  共享資料夾，默認 ./shared
+//   --user-data <dir>    用戶資料夾，默認 ./user
+//   --schema <id>        回放前切換到的方案
+//   --deploy             回放前部署
+//   --warmup <n>         預熱輪數，不計入統計，默認 1
+//   --repeat <n>         統計輪數，默認 5
+//   --max-p99-us <n>     onKey 的 p99 延遲超過 n 微秒時以 3 退出
+//   --baseline <file>    與基線比較，任一指標的 p99 超出基線 --tolerance 以上時以 3 退出
+//   --tolerance <pct>    允許超出基線的百分比，默認 10
+//   --save-baseline <file>  把本次的 p99 寫入基線文件
+//
+// 輸入文件每行一個按鍵序列，語法同 simulate_key_sequence，如 "nihao{space}"，空行與 # 開頭的行忽略
+// 基線文件每行爲指標名與 p99，如 "onKey 850.0"
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <fstream>
+#include <map>
+#include <new>
+#include <string>
+#include <vector>
+#include <rime_api.h>
+#include <rime/key_event.h>
+#include "context_writer.h"
+
+extern void rime_require_module_lua();
+extern void rime_require_module_charcode();
+extern void rime_require_module_octagram();
+
+// 統計 librime 在每次按鍵中的分配次數，librime 靜態鏈接到本程序，全局 operator new 覆蓋其全部 C++ 分配
+static std::atomic<uint64_t> allocations(0);
+
+void *operator new(size_t size) {
+    allocations.fetch_add(1, std::memory_order_relaxed);
+    if (void *p = malloc(size ? size : 1)) return p;
+    throw std::bad_alloc();
+}
+
+void *operator new[](size_t size) {
+    return operator new(size);
+}
+
+void operator delete(void *p) noexcept { free(p); }
+
+void operator delete[](void *p) noexcept { free(p); }
+
+void operator delete(void *p, size_t) noexcept { free(p); }
+
+void operator delete[](void *p, size_t) noexcept { free(p); }
+
+struct IoCounters {
+    uint64_t rchar = 0;
+    uint64_t syscr = 0;
+    uint64_t read_bytes = 0;
+};
+
+// 讀取 /proc/self/io，詞典與用戶詞庫的讀取都計入其中
+static IoCounters readIoCounters() {
+    IoCounters io;
+    std::ifstream in("/proc/self/io");
+    std::string key;
+    uint64_t value;
+    while (in >> key >> value) {
+        if (key == "rchar:") io.rchar = value;
+        else if (key == "syscr:") io.syscr = value;
+        else if (key == "read_bytes:") io.read_bytes = value;
+    }
+    return io;
+}
+
+struct Sample {
+    double process_us;
+    double total_us;
+    uint64_t allocations;
+};
+
+static double percentile(std::vector<double> values, double p) {
+    if (values.empty()) return 0;
+    std::sort(values.begin(), values.end());
+    size_t index = static_cast<size_t>(p / 100.0 * (values.size() - 1) + 0.5);
+    return values[std::min(index, values.size() - 1)];
+}
+
+static void report(const char *name, const std::vector<double> &values) {
+    printf("%-16s p50=%9.1f p90=%9.1f p99=%9.1f max=%9.1f\n", name,
+           percentile(values, 50), percentile(values, 90),
+           percentile(values, 99), percentile(values, 100));
+}
+
+// 指標名到 p99，讀取失敗時爲空
+static std::map<std::string, double> loadBaseline(const char *path) {
+    std::map<std::string, double> baseline;
+    std::ifstream in(path);
+    std::string name;
+    double value;
+    while (in >> name >> value) baseline[name] = value;
+    return baseline;
+}
+
+static bool saveBaseline(const char *path, const std::map<std::string, double> &p99) {
+    FILE *out = fopen(path, "w");
+    if (!out) return false;
+    for (const auto &entry : p99) fprintf(out, "%s %.1f\n", entry.first.c_str(), entry.second);
+    fclose(out);
+    return true;
+}
+
+// 返回是否有指標超出基線
+static bool compareBaseline(const std::map<std::string, double> &baseline,
+                            const std::map<std::string, double> &p99, double tolerance) {
+    bool regressed = false;
+    for (const auto &entry : baseline) {
+        auto it = p99.find(entry.first);
+        if (it == p99.end()) continue;
+        double limit = entry.second * (1 + tolerance / 100.0);
+        bool over = it->second > limit;
+        printf("%-16s p99=%9.1f baseline=%9.1f limit=%9.1f %s\n", entry.first.c_str(),
+               it->second, entry.second, limit, over ? "REGRESSED" : "ok");
+        regressed |= over;
+    }
+    return regressed;
+}
+
+// 與 Rime.onKey 相同：process_key 之後取 commit、context 與 status
+static Sample replayKey(RimeSessionId session, const rime::KeyEvent &key,
+                        std::vector<char> &buffer) {
+    using clock = std::chrono::steady_clock;
+    uint64_t allocations_before = allocations.load(std::memory_order_relaxed);
+    auto start = clock::now();
+    RimeProcessKey(session, key.keycode(), key.modifier());
+    auto processed = clock::now();
+
+    RIME_STRUCT(RimeCommit, commit);
+    if (RimeGetCommit(session, &commit)) RimeFreeCommit(&commit);
+
+    RIME_STRUCT(RimeContext, context);
+    if (RimeGetContext(session, &context)) {
+        ContextWriter writer(buffer.data(), static_cast<int64_t>(buffer.size()));
+        writeRimeContext(writer, context);
+        if (writer.size() > static_cast<int32_t>(buffer.size())) {
+            buffer.resize(writer.size() * 2);
+            ContextWriter retry(buffer.data(), static_cast<int64_t>(buffer.size()));
+            writeRimeContext(retry, context);
+        }
+        RimeFreeContext(&context);
+    }
+
+    RIME_STRUCT(RimeStatus, status);
+    if (RimeGetStatus(session, &status)) RimeFreeStatus(&status);
+    auto end = clock::now();
+
+    Sample sample;
+    sample.process_us = std::chrono::duration<double, std::micro>(processed - start).count();
+    sample.total_us = std::chrono::duration<double, std::micro>(end - start).count();
+    sample.allocations = allocations.load(std::memory_order_relaxed) - allocations_before;
+    return sample;
+}
+
+static std::vector<rime::KeySequence> loadSequences(const char *path) {
+    std::vector<rime::KeySequence> sequences;
+    std::ifstream in(path);
+    std::string line;
+    int line_no = 0;
+    while (std::getline(in, line)) {
+        ++line_no;
+        if (line.empty() || line[0] == '#') continue;
+        rime::KeySequence sequence;
+        if (!sequence.Parse(line)) {
+            fprintf(stderr, "%s:%d: invalid key sequence: %s\n", path, line_no, line.c_str());
+            continue;
+        }
+        sequences.push_back(sequence);
+    }
+    return sequences;
+}
+
+int main(int argc, char *argv[]) {
+    std::string shared_data_dir = "shared";
+    std::string user_data_dir = "user";
+    std::string schema_id;
+    bool deploy = false;
+    int warmup = 1;
+    int repeat = 5;
+    double max_p99_us = 0;
+    double tolerance = 10;
+    const char *baseline_file = nullptr;
+    const char *save_baseline_file = nullptr;
+    const char *input = nullptr;
+    for (int i = 1; i < argc; ++i) {
+        std::string arg = argv[i];
+        bool has_value = i + 1 < argc;
+        if (arg == "--shared-data" && has_value) shared_data_dir = argv[++i];
+        else if (arg == "--user-data" && has_value) user_data_dir = argv[++i];
+        else if (arg == "--schema" && has_value) schema_id = argv[++i];
+        else if (arg == "--deploy") deploy = true;
+        else if (arg == "--warmup" && has_value) warmup = atoi(argv[++i]);
+        else if (arg == "--repeat" && has_value) repeat = atoi(argv[++i]);
+        else if (arg == "--max-p99-us" && has_value) max_p99_us = atof(argv[++i]);
+        else if (arg == "--baseline" && has_value) baseline_file = argv[++i];
+        else if (arg == "--tolerance" && has_value) tolerance = atof(argv[++i]);
+        else if (arg == "--save-baseline" && has_value) save_baseline_file = argv[++i];
+        else if (arg[0] != '-') input = argv[i];
+        else {
+            fprintf(stderr, "unknown option: %s\n", arg.c_str());
+            return 2;
+        }
+    }
+    if (!input) {
+        fprintf(stderr, "usage: %s [options] <key_sequences_file>\n", argv[0]);
+        return 2;
+    }
+    std::map<std::string, double> baseline;
+    if (baseline_file) {
+        baseline = loadBaseline(baseline_file);
+        if (baseline.empty()) {
+            fprintf(stderr, "no baseline in %s\n", baseline_file);
+            return 2;
+        }
+    }
+    std::vector<rime::KeySequence> sequences = loadSequences(input);
+    if (sequences.empty()) {
+        fprintf(stderr, "no key sequences in %s\n", input);
+        return 1;
+    }
+
+    // librime 靜態鏈接，需顯式引用插件模塊，與 JNI_OnLoad 相同
+    rime_require_module_lua();
+    rime_require_module_charcode();
+    rime_require_module_octagram();
+
+    RIME_STRUCT(RimeTraits, traits);
+    traits.shared_data_dir = shared_data_dir.c_str();
+    traits.user_data_dir = user_data_dir.c_str();
+    traits.app_name = "com.osfans.trime.replay";
+    RimeSetup(&traits);
+    RimeInitialize(&traits);
+    if (deploy && RimeStartMaintenance(True)) RimeJoinMaintenanceThread();
+
+    RimeSessionId session = RimeCreateSession();
+    if (!session) {
+        fprintf(stderr, "failed to create session\n");
+        RimeFinalize();
+        return 1;
+    }
+    if (!schema_id.empty() && !RimeSelectSchema(session, schema_id.c_str())) {
+        fprintf(stderr, "failed to select schema %s\n", schema_id.c_str());
+    }
+
+    std::vector<char> buffer(16 * 1024);
+    std::vector<double> process_us;
+    std::vector<double> total_us;
+    std::vector<double> allocs;
+    IoCounters io_before;
+    for (int round = 0; round < warmup + repeat; ++round) {
+        bool measured = round >= warmup;
+        if (round == warmup) io_before = readIoCounters();
+        for (const auto &sequence : sequences) {
+            for (const auto &key : sequence) {
+                Sample sample = replayKey(session, key, buffer);
+                if (!measured) continue;
+                process_us.push_back(sample.process_us);
+                total_us.push_back(sample.total_us);
+                allocs.push_back(static_cast<double>(sample.allocations));
+            }
+            RimeClearComposition(session);
+        }
+    }
+    IoCounters io_after = readIoCounters();
+
+    printf("keys: %zu (%d rounds of %zu sequences)\n", total_us.size(), repeat, sequences.size());
+    printf("latency in microseconds\n");
+    report("process_key", process_us);
+    report("onKey", total_us);
+    printf("allocations per key\n");
+    report("operator new", allocs);
+    printf("I/O during replay: rchar=%llu syscr=%llu read_bytes=%llu\n",
+           static_cast<unsigned long long>(io_after.rchar - io_before.rchar),
+           static_cast<unsigned long long>(io_after.syscr - io_before.syscr),
+           static_cast<unsigned long long>(io_after.read_bytes - io_before.read_bytes));
+
+    RimeDestroySession(session);
+    RimeFinalize();
+
+    std::map<std::string, double> p99 = {
+        {"process_key", percentile(process_us, 99)},
+        {"onKey", percentile(total_us, 99)},
+        {"operator_new", percentile(allocs, 99)},
+    };
+    if (save_baseline_file && !saveBaseline(save_baseline_file, p99)) {
+        fprintf(stderr, "failed to write %s\n", save_baseline_file);
+        return 1;
+    }
+    bool regressed = false;
+    if (max_p99_us > 0 && p99["onKey"] > max_p99_us) {
+        printf("onKey p99 %.1fus exceeds --max-p99-us %.1f\n", p99["onKey"], max_p99_us);
+        regressed = true;
+    }
+    if (!baseline.empty()) regressed |= compareBaseline(baseline, p99, tolerance);
+    return regressed ? 3 : 0;
+}
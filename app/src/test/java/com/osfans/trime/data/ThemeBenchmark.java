@@ -0,0 +1,65 @@
+package com.osfans.trime.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** {@link Config#getValue(String)} 等樣式查詢所用的 {@link Theme}，以及主題的編譯 */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ThemeBenchmark {
+  private static final String[] KEYS = {
+    "key_height", "candidate_text_size", "layout/max_width", "layout/position", "missing/key"
+  };
+
+  private Map<String, Object> defaultStyle;
+  private Map<String, Object> schemaStyle;
+  private Theme theme;
+
+  @Setup
+  public void setup() {
+    defaultStyle = new HashMap<>();
+    defaultStyle.put("key_height", 40);
+    defaultStyle.put("candidate_text_size", "22");
+    defaultStyle.put("color_scheme", "default");
+    final Map<String, Object> layout = new HashMap<>();
+    layout.put("max_width", 360);
+    layout.put("position", "fixed");
+    layout.put("round_corner", 5.5);
+    defaultStyle.put("layout", layout);
+    for (int i = 0; i < 100; i++) defaultStyle.put("style_" + i, i);
+
+    schemaStyle = new HashMap<>();
+    final Map<String, Object> schemaLayout = new HashMap<>();
+    schemaLayout.put("max_width", 320);
+    schemaStyle.put("layout", schemaLayout);
+
+    theme = Theme.compile(defaultStyle, schemaStyle, null);
+  }
+
+  @Benchmark
+  public void getValue(Blackhole bh) {
+    for (String key : KEYS) bh.consume(theme.getValue(key));
+  }
+
+  @Benchmark
+  public void getFloat(Blackhole bh) {
+    for (String key : KEYS) {
+      if (!"layout/position".equals(key)) bh.consume(theme.getFloat(key, 0f));
+    }
+  }
+
+  @Benchmark
+  public Theme compile() {
+    return Theme.compile(defaultStyle, schemaStyle, null);
+  }
+}
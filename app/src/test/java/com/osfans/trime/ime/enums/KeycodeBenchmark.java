@@ -0,0 +1,40 @@
+package com.osfans.trime.ime.enums;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** 鍵碼與鍵名互查，每次調用遍歷全部鍵碼 */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeycodeBenchmark {
+  private static final int COUNT = Keycode.values().length;
+  private static final String[] NAMES = {"a", "Return", "BackSpace", "space", "F12", "braceleft"};
+  private static final String[] SENDS = {"Control+a", "Shift+Return", "Control+Alt+Delete", "x"};
+
+  @Benchmark
+  public void valueOf(Blackhole bh) {
+    for (int i = 0; i < COUNT; i++) bh.consume(Keycode.valueOf(i));
+  }
+
+  @Benchmark
+  public void keyNameOf(Blackhole bh) {
+    for (int i = 0; i < COUNT; i++) bh.consume(Keycode.keyNameOf(i));
+  }
+
+  @Benchmark
+  public void keyCodeOf(Blackhole bh) {
+    for (String name : NAMES) bh.consume(Keycode.keyCodeOf(name));
+  }
+
+  @Benchmark
+  public void parseSend(Blackhole bh) {
+    for (String send : SENDS) bh.consume(Keycode.parseSend(send));
+  }
+}
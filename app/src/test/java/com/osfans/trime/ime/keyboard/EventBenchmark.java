@@ -0,0 +1,54 @@
+package com.osfans.trime.ime.keyboard;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 按鍵事件字符串的解析，覆蓋 send、preset_keys 與純文本
+ *
+ * <p>單獨的按鍵名（如 "a"）要經 KeyCharacterMap 取顯示標籤，主機上無法執行，只能在設備上測量。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventBenchmark {
+  @Param({"{Control+a}", "{Shift+Return}", "Return", "space_preset", "你好"})
+  public String event;
+
+  @Setup
+  public void setup() {
+    final Map<String, Map<String, String>> presetKeys = new HashMap<>();
+    presetKeys.put("Return", preset("send", "Return", "label", "⏎"));
+    presetKeys.put("space_preset", preset("send", "space", "label", "空格", "repeatable", "true"));
+    presetKeys.put("Mode_switch", preset("toggle", "ascii_mode", "send", "Mode_switch"));
+    Key.presetKeys = presetKeys;
+  }
+
+  private static Map<String, String> preset(String... kv) {
+    final Map<String, String> m = new HashMap<>();
+    for (int i = 0; i + 1 < kv.length; i += 2) m.put(kv[i], kv[i + 1]);
+    return m;
+  }
+
+  /** 未命中緩存：每次重新解析 */
+  @Benchmark
+  public Event parse() {
+    Event.clearCache();
+    return Event.obtain(event);
+  }
+
+  /** 命中緩存：構建鍵盤時同一事件字符串的常見情形 */
+  @Benchmark
+  public Event obtain() {
+    return Event.obtain(event);
+  }
+}
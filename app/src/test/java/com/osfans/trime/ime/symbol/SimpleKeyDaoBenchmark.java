@@ -0,0 +1,57 @@
+package com.osfans.trime.ime.symbol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** 符號鍵盤歷史記錄的讀寫 */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimpleKeyDaoBenchmark {
+  @Param({"30", "300"})
+  public int size;
+
+  private File file;
+  private List<SimpleKeyBean> history;
+
+  @Setup
+  public void setup() throws IOException {
+    file = File.createTempFile("symbol_history", ".bin");
+    history = new ArrayList<>();
+    for (int i = 0; i < size; i++) history.add(new SimpleKeyBean("符號" + i, "label" + i));
+    SimpleKeyDao.saveSymbolKeyHistory(file.getPath(), history);
+  }
+
+  @TearDown
+  public void tearDown() {
+    // noinspection ResultOfMethodCallIgnored
+    file.delete();
+  }
+
+  @Benchmark
+  public void save() {
+    SimpleKeyDao.saveSymbolKeyHistory(file.getPath(), history);
+  }
+
+  @Benchmark
+  public List<SimpleKeyBean> load() {
+    return SimpleKeyDao.getSymbolKeyHistory(file.getPath());
+  }
+
+  @Benchmark
+  public List<SimpleKeyBean> splitKeyboard() {
+    return SimpleKeyDao.Single("，。！？：；、（）《》「」『』【】～…—·＠＃％＆＊＋＝");
+  }
+}
@@ -0,0 +1,51 @@
+package com.osfans.trime.util;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** 剪貼板與草稿的過濾規則，規則取自默認設置 */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StringUtilsBenchmark {
+  private static final String[] COMPARE_RULES = {"\\s+", "\\p{Punct}"};
+  private static final String[] OUTPUT_RULES = {"(?s).*https?://.*", "\\d{6}", ".{0,1}"};
+
+  @Param({"short", "url", "long"})
+  public String kind;
+
+  private String text;
+
+  @Setup
+  public void setup() {
+    switch (kind) {
+      case "url":
+        text = "see https://github.com/osfans/trime for details";
+        break;
+      case "long":
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 64; i++) sb.append("同文輸入法, Trime IME. ");
+        text = sb.toString();
+        break;
+      default:
+        text = "你好，世界！";
+    }
+  }
+
+  @Benchmark
+  public String replace() {
+    return StringUtils.replace(text, COMPARE_RULES);
+  }
+
+  @Benchmark
+  public boolean mismatch() {
+    return StringUtils.mismatch(text, OUTPUT_RULES);
+  }
+}